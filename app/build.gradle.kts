@@ -62,6 +62,10 @@ android {
         // Disables dependency metadata when building Android App Bundles.
         includeInBundle = false
     }
+    testOptions {
+        // Let unit tests call into code that logs, instead of failing on the stubbed framework.
+        unitTests.isReturnDefaultValues = true
+    }
     compileOptions {
         isCoreLibraryDesugaringEnabled = true
         sourceCompatibility = JavaVersion.VERSION_16
@@ -24,7 +24,13 @@ public class BootReceiver extends BroadcastReceiver {
 
             if (startOnBoot) {
                 String selectedIp = sharedPreferences.getString(PREF_KEY_IP_ADDRESS, null);
-                SmbService.startService(context, false, selectedIp);
+                // Clean up after a crash before the service sets up its redirects again. Needs
+                // root, so only bother if the service is going to use it anyway.
+                PendingResult result = goAsync();
+                SmbService.resetRedirects().whenComplete((ignored, e) -> {
+                    SmbService.startService(context, false, selectedIp);
+                    result.finish();
+                });
             }
         }
     }
@@ -41,6 +41,7 @@ import java.util.List;
 import java.util.Objects;
 
 import de.buttercookie.simbadroid.databinding.ActivityMainBinding;
+import de.buttercookie.simbadroid.jlan.JLANFileServer;
 import de.buttercookie.simbadroid.permissions.Permissions;
 import de.buttercookie.simbadroid.service.SmbService;
 import de.buttercookie.simbadroid.service.SmbServiceConnection;
@@ -56,6 +57,7 @@ public class MainActivity extends AppCompatActivity {
     private SmbService mService;
     private boolean mBound = false;
     private ArrayAdapter<String> mIpAddressAdapter;
+    private boolean mHasAllAddressesEntry;
     private final SmbServiceConnection mSmbSrvConn = new SmbServiceConnection() {
         @Override
         public void onServiceConnected(ComponentName name, IBinder service) {
@@ -85,7 +87,7 @@ public class MainActivity extends AppCompatActivity {
         binding.ipAddressSpinner.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
             @Override
             public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
-                String selectedIp = (String) parent.getItemAtPosition(position);
+                String selectedIp = getIpAddressAt(position);
                 Context storageContext = createDeviceProtectedStorageContext();
                 SharedPreferences.Editor editor = storageContext.getSharedPreferences(PREFS_NAME, MODE_PRIVATE).edit();
                 editor.putString(PREF_KEY_IP_ADDRESS, selectedIp);
@@ -180,6 +182,8 @@ public class MainActivity extends AppCompatActivity {
 
         if (!status.serviceRunning()) {
             statusText.setText(R.string.status_server_off);
+        } else if (status.startupStage() != null) {
+            statusText.setText(R.string.message_server_starting);
         } else if (!status.serverRunning()) {
             statusText.setText(R.string.message_server_waiting_network);
         } 
@@ -203,8 +207,14 @@ public class MainActivity extends AppCompatActivity {
     private void updateIpAddressSpinner(List<InetAddress> addresses) {
         final Spinner spinner = binding.ipAddressSpinner;
         mIpAddressAdapter.clear();
+        // Only offer serving all addresses if the server can actually do so.
+        mHasAllAddressesEntry = addresses != null && addresses.size() > 1 &&
+                JLANFileServer.supportsMultipleAddresses(this);
 
         if (addresses != null) {
+            if (mHasAllAddressesEntry) {
+                mIpAddressAdapter.add(getString(R.string.ip_address_all));
+            }
             for (InetAddress addr : addresses) {
                 mIpAddressAdapter.add(addr.getHostAddress());
             }
@@ -215,7 +225,9 @@ public class MainActivity extends AppCompatActivity {
             SharedPreferences prefs = storageContext.getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
             String savedIp = prefs.getString(PREF_KEY_IP_ADDRESS, null);
             if (savedIp != null) {
-                int position = mIpAddressAdapter.getPosition(savedIp);
+                int position = SmbService.ALL_ADDRESSES.equals(savedIp) ?
+                        (mHasAllAddressesEntry ? 0 : -1) :
+                        mIpAddressAdapter.getPosition(savedIp);
                 if (position >= 0) {
                     spinner.setSelection(position);
                 }
@@ -239,12 +251,19 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private void startSmbService() {
-        String selectedIp = (String) binding.ipAddressSpinner.getSelectedItem();
-        if (selectedIp == null) {
+        int position = binding.ipAddressSpinner.getSelectedItemPosition();
+        if (position == AdapterView.INVALID_POSITION) {
             // This should not happen if the start button is enabled
             return;
         }
-        SmbService.startService(this, true, selectedIp);
+        SmbService.startService(this, true, getIpAddressAt(position));
+    }
+
+    private String getIpAddressAt(int position) {
+        if (position == 0 && mHasAllAddressesEntry) {
+            return SmbService.ALL_ADDRESSES;
+        }
+        return mIpAddressAdapter.getItem(position);
     }
 
     private void stopSmbService() {
@@ -0,0 +1,249 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package de.buttercookie.simbadroid.jlan;
+
+import android.os.Process;
+import android.util.Log;
+
+import org.filesys.server.thread.ThreadRequestPool;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Grows and shrinks the server's worker thread pool with the load.
+ * <p>
+ * The JFileServer pool has a fixed number of workers, so additional workers are attached to the
+ * same request queue whenever requests are backing up behind busy workers, up to a limit derived
+ * from the core count and the observed ratio of blocking to CPU time (requests waiting on slow
+ * FUSE I/O don't need a core, so more of them can run in parallel). Once the server has been idle
+ * for a while, the additional workers are retired again. While idle, the load is only sampled
+ * rarely, so that the device isn't kept awake.
+ */
+class AdaptiveWorkerPool {
+    private static final String LOGTAG = "AdaptiveWorkerPool";
+
+    private static final long BUSY_INTERVAL_MS = 250;
+    private static final long IDLE_INTERVAL_MS = 5000;
+    private static final long SHRINK_AFTER_IDLE_MS = 30000;
+    // How often the limit is recalculated from the blocking ratio.
+    private static final long TUNE_INTERVAL_MS = 5000;
+
+    private final ThreadRequestPool mPool;
+    private final int mBaseWorkers;
+    private final int mMaxWorkers;
+    private final int mCores;
+
+    private final Queue<WorkerFactory.ExtraWorker> mExtraWorkers = new ConcurrentLinkedQueue<>();
+    // Retire requests that have been queued, but not run yet.
+    private final AtomicInteger mPendingRetirements = new AtomicInteger();
+
+    // Guarded by 'this'.
+    private ScheduledExecutorService mMonitor;
+
+    // Only accessed on the monitor thread.
+    private volatile int mWorkerLimit;
+    private int mNextWorkerId;
+    private long mLastSample;
+    private long mIdleSince;
+    private long mTuneStart;
+    private long mTuneCpuStart;
+    private long mBusyMs;
+
+    /**
+     * @param pool The pool to extend, already running with <code>baseWorkers</code> workers.
+     * @param baseWorkers The number of workers the pool always keeps.
+     * @param maxWorkers The hard limit for the total number of workers.
+     */
+    AdaptiveWorkerPool(ThreadRequestPool pool, int baseWorkers, int maxWorkers) {
+        mPool = pool;
+        mBaseWorkers = baseWorkers;
+        mMaxWorkers = Math.max(maxWorkers, baseWorkers);
+        mCores = Runtime.getRuntime().availableProcessors();
+        mWorkerLimit = Math.min(mMaxWorkers, Math.max(mBaseWorkers, 2 * mCores));
+    }
+
+    synchronized void start() {
+        if (mMonitor != null) {
+            return;
+        }
+        mMonitor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "WorkerPoolMonitor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        mLastSample = now();
+        mIdleSince = mLastSample;
+        mTuneStart = mLastSample;
+        mTuneCpuStart = Process.getElapsedCpuTime();
+        mBusyMs = 0;
+        mMonitor.schedule(this::sample, IDLE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void stop() {
+        if (mMonitor == null) {
+            return;
+        }
+        mMonitor.shutdownNow();
+        mMonitor = null;
+        for (WorkerFactory.ExtraWorker worker : mExtraWorkers) {
+            worker.shutdownRequest();
+        }
+        mExtraWorkers.clear();
+    }
+
+    /**
+     * @return The number of requests waiting for a worker.
+     */
+    int getQueueDepth() {
+        return mPool.numberOfRequests();
+    }
+
+    /**
+     * @return The number of workers currently processing a request.
+     */
+    int getActiveWorkers() {
+        return mPool.numberOfActiveThreads();
+    }
+
+    /**
+     * @return The total number of workers, busy or not.
+     */
+    int getWorkerCount() {
+        return mBaseWorkers + mExtraWorkers.size();
+    }
+
+    /**
+     * @return The number of workers the pool may currently grow to.
+     */
+    int getWorkerLimit() {
+        return mWorkerLimit;
+    }
+
+    private void sample() {
+        long now = now();
+        int queued = getQueueDepth();
+        int active = getActiveWorkers();
+        int workers = getWorkerCount();
+
+        mBusyMs += active * (now - mLastSample);
+        mLastSample = now;
+        if (now - mTuneStart >= TUNE_INTERVAL_MS) {
+            tune(now);
+        }
+
+        if (queued > 0 && active >= workers && workers < mWorkerLimit) {
+            int count = Math.min(queued, mWorkerLimit - workers);
+            for (int i = 0; i < count; i++) {
+                String name = "FileSrvWorkerX" + mNextWorkerId++;
+                mExtraWorkers.add(WorkerFactory.newWorker(mPool, name));
+            }
+            Log.d(LOGTAG, "Grew worker pool to " + getWorkerCount() + " threads");
+        }
+
+        boolean idle = queued == 0 && active == 0;
+        if (!idle) {
+            mIdleSince = now;
+        } else if (now - mIdleSince >= SHRINK_AFTER_IDLE_MS && !mExtraWorkers.isEmpty()) {
+            retireIdleWorkers();
+        }
+
+        synchronized (this) {
+            if (mMonitor != null) {
+                long delay = idle && mExtraWorkers.isEmpty() ? IDLE_INTERVAL_MS : BUSY_INTERVAL_MS;
+                mMonitor.schedule(this::sample, delay, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Recalculate the worker limit as <code>cores * (1 + blocking time / CPU time)</code>.
+     */
+    private void tune(long now) {
+        long cpu = Process.getElapsedCpuTime();
+        long cpuMs = Math.max(cpu - mTuneCpuStart, 1);
+        if (mBusyMs > 0) {
+            double blockingRatio = Math.max(mBusyMs - cpuMs, 0) / (double) cpuMs;
+            int limit = (int) Math.ceil(mCores * (1 + blockingRatio));
+            mWorkerLimit = Math.max(mBaseWorkers, Math.min(limit, mMaxWorkers));
+        }
+        mTuneStart = now;
+        mTuneCpuStart = cpu;
+        mBusyMs = 0;
+    }
+
+    /**
+     * Shut down the additional workers once they're done with their current request.
+     * <p>
+     * Shutting a worker down interrupts its thread, which would abort any request it might have
+     * picked up since we've sampled the pool. So instead, a retire request is queued for each
+     * worker, and the worker that runs it shuts itself down in between two requests. Retire
+     * requests picked up by the pool's own workers are ignored, and the remaining additional
+     * workers are retired after the next sample.
+     */
+    private void retireIdleWorkers() {
+        int count = mExtraWorkers.size() - mPendingRetirements.get();
+        for (int i = 0; i < count; i++) {
+            mPendingRetirements.incrementAndGet();
+            mPool.queueRequest(this::retireCurrentWorker);
+        }
+    }
+
+    private void retireCurrentWorker() {
+        mPendingRetirements.decrementAndGet();
+        Thread current = Thread.currentThread();
+        for (WorkerFactory.ExtraWorker worker : mExtraWorkers) {
+            if (worker.getThread() == current && mExtraWorkers.remove(worker)) {
+                // Only interrupts ourselves, and the worker exits once we return.
+                worker.shutdownRequest();
+                Log.d(LOGTAG, "Shrunk worker pool to " + getWorkerCount() + " threads");
+                return;
+            }
+        }
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    /**
+     * Only exists to get access to the pool's protected worker class, never instantiated.
+     */
+    private abstract static class WorkerFactory extends ThreadRequestPool {
+        private WorkerFactory() {
+            super(null);
+        }
+
+        /**
+         * Start a new worker for the given pool.
+         */
+        static ExtraWorker newWorker(ThreadRequestPool pool, String name) {
+            return new ExtraWorker(pool, name);
+        }
+
+        static final class ExtraWorker extends ThreadWorker {
+            // Set by the worker thread itself, which is already started by the super constructor.
+            private volatile Thread mThread;
+
+            ExtraWorker(ThreadRequestPool pool, String name) {
+                pool.super(name);
+            }
+
+            @Override
+            public void run() {
+                mThread = Thread.currentThread();
+                super.run();
+            }
+
+            Thread getThread() {
+                return mThread;
+            }
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package de.buttercookie.simbadroid.jlan;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.Environment;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import de.buttercookie.simbadroid.util.FileUtils;
+import de.buttercookie.simbadroid.util.SdCard;
+
+class AndroidServerPlatform implements ServerPlatform {
+    private static final String MemoryPoolPrefsName = "MemoryPoolTuning";
+
+    private final Context mContext;
+
+    AndroidServerPlatform(Context context) {
+        mContext = context;
+    }
+
+    @Override
+    public List<Share> getShares() {
+        List<Share> shares = new ArrayList<>();
+        File sdCard = SdCard.findSdCardPath(mContext, null);
+        if (sdCard != null) {
+            shares.add(new Share("External", sdCard.getAbsolutePath(),
+                    FileUtils.getTrashcanPath(mContext, sdCard).getAbsolutePath()));
+        }
+        File internal = Environment.getExternalStorageDirectory();
+        shares.add(new Share("Internal", internal.getAbsolutePath(),
+                FileUtils.getTrashcanPath(mContext, internal).getAbsolutePath()));
+        return shares;
+    }
+
+    @Override
+    public SharedPreferences getMemoryPoolPreferences() {
+        return mContext.createDeviceProtectedStorageContext()
+                .getSharedPreferences(MemoryPoolPrefsName, Context.MODE_PRIVATE);
+    }
+
+    @Override
+    public VolumeInfo getVolumeInfo() {
+        return new AndroidVolumeInfo();
+    }
+
+    @Override
+    public boolean needsDesugaringWorkarounds() {
+        return Build.VERSION.SDK_INT < Build.VERSION_CODES.N;
+    }
+}
@@ -0,0 +1,29 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package de.buttercookie.simbadroid.jlan;
+
+import android.os.StatFs;
+import android.system.ErrnoException;
+import android.system.Os;
+
+import java.io.IOException;
+
+class AndroidVolumeInfo implements VolumeInfo {
+    @Override
+    public Usage getUsage(String path) {
+        StatFs statFs = new StatFs(path);
+        return new Usage(statFs.getBlockSizeLong(), statFs.getBlockCountLong(),
+                statFs.getAvailableBlocksLong());
+    }
+
+    @Override
+    public long getDeviceId(String path) throws IOException {
+        try {
+            return Os.stat(path).st_dev;
+        } catch (ErrnoException e) {
+            throw e.rethrowAsIOException();
+        }
+    }
+}
@@ -0,0 +1,271 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package de.buttercookie.simbadroid.jlan;
+
+import android.os.FileObserver;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Caches directory listings including the attributes of each entry, so that repeatedly listing
+ * the same folder doesn't need to re-read and re-stat the whole directory.
+ * <p>
+ * A cached listing is dropped when the server itself modifies the directory or one of its files,
+ * when a {@link FileObserver} reports a change made by other apps on the device, or when the
+ * modification time of the directory no longer matches. The latter only needs a single stat and
+ * covers file systems where inotify events don't arrive reliably.
+ */
+class DirectoryCache {
+    private static final String LOGTAG = "DirectoryCache";
+
+    private static final int WATCH_MASK = FileObserver.CREATE | FileObserver.DELETE |
+            FileObserver.MOVED_FROM | FileObserver.MOVED_TO | FileObserver.MODIFY |
+            FileObserver.ATTRIB | FileObserver.CLOSE_WRITE | FileObserver.DELETE_SELF |
+            FileObserver.MOVE_SELF;
+
+    /**
+     * A single directory entry as it was when the listing was read.
+     */
+    record Entry(String name, boolean isDirectory, long size, long modifyTime,
+                 boolean isWritable) {}
+
+    private final int mMaxDirectories;
+
+    // Guarded by 'mListings'.
+    private final LinkedHashMap<String, Listing> mListings =
+            new LinkedHashMap<>(16, 0.75f, true);
+
+    DirectoryCache(int maxDirectories) {
+        mMaxDirectories = maxDirectories;
+    }
+
+    /**
+     * Get the entries of a directory, reading them from disk if necessary.
+     *
+     * @param localPath The absolute local path of the directory.
+     * @return The directory entries, or <code>null</code> if the path isn't a directory.
+     */
+    @Nullable
+    List<Entry> getEntries(String localPath) throws IOException {
+        Path dir = Paths.get(localPath);
+        BasicFileAttributes dirAttrs;
+        try {
+            dirAttrs = Files.readAttributes(dir, BasicFileAttributes.class);
+        } catch (IOException e) {
+            return null;
+        }
+        if (!dirAttrs.isDirectory()) {
+            return null;
+        }
+        long dirModifyTime = dirAttrs.lastModifiedTime().toMillis();
+
+        Listing listing;
+        synchronized (mListings) {
+            listing = mListings.get(localPath);
+        }
+        if (listing != null) {
+            List<Entry> entries = listing.getEntries(dirModifyTime);
+            if (entries != null) {
+                return entries;
+            }
+        } else {
+            listing = new Listing(localPath);
+            synchronized (mListings) {
+                Listing existing = mListings.putIfAbsent(localPath, listing);
+                if (existing != null) {
+                    listing = existing;
+                } else {
+                    listing.startWatching();
+                    evictLocked();
+                }
+            }
+        }
+
+        long generation = listing.getGeneration();
+        List<Entry> entries = readDirectory(dir);
+        listing.setEntries(entries, dirModifyTime, generation);
+        return entries;
+    }
+
+    /**
+     * Check whether a directory might contain an entry with the given name (ignoring case),
+     * based only on what is cached. Like {@link #getEntries}, this checks the modification time of
+     * the directory, but never reads it.
+     *
+     * @return <code>false</code> if the directory is known not to contain the name,
+     *         <code>true</code> if it might, or if there is no up-to-date listing.
+     */
+    boolean mightContain(String localPath, String name) {
+        Listing listing;
+        synchronized (mListings) {
+            listing = mListings.get(localPath);
+        }
+        if (listing == null || !listing.hasEntries()) {
+            return true;
+        }
+        long dirModifyTime;
+        try {
+            dirModifyTime = Files.getLastModifiedTime(Paths.get(localPath)).toMillis();
+        } catch (IOException e) {
+            return true;
+        }
+        return listing.mightContain(name, dirModifyTime);
+    }
+
+    /**
+     * Mark the listing of the given directory as out of date.
+     */
+    void invalidate(String localPath) {
+        Listing listing;
+        synchronized (mListings) {
+            listing = mListings.get(localPath);
+        }
+        if (listing != null) {
+            listing.invalidate();
+        }
+    }
+
+    /**
+     * Mark the listing of the directory containing the given file as out of date.
+     */
+    void invalidateParent(String localPath) {
+        String parent = new File(localPath).getParent();
+        if (parent != null) {
+            invalidate(parent);
+        }
+    }
+
+    void clear() {
+        synchronized (mListings) {
+            for (Listing listing : mListings.values()) {
+                listing.stopWatching();
+            }
+            mListings.clear();
+        }
+    }
+
+    private void evictLocked() {
+        Iterator<Listing> it = mListings.values().iterator();
+        while (mListings.size() > mMaxDirectories && it.hasNext()) {
+            Listing listing = it.next();
+            listing.stopWatching();
+            it.remove();
+        }
+    }
+
+    private static List<Entry> readDirectory(Path dir) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path path : stream) {
+                try {
+                    BasicFileAttributes attrs = Files.readAttributes(path,
+                            BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    entries.add(new Entry(path.getFileName().toString(), attrs.isDirectory(),
+                            attrs.isDirectory() ? 0 : attrs.size(),
+                            attrs.lastModifiedTime().toMillis(),
+                            attrs.isDirectory() || Files.isWritable(path)));
+                } catch (IOException e) {
+                    // The entry has disappeared while we were listing the directory
+                    Log.d(LOGTAG, "Skipping " + path, e);
+                }
+            }
+        }
+        return Collections.unmodifiableList(entries);
+    }
+
+    private static final class Listing {
+        private final FileObserver mObserver;
+
+        // Guarded by 'this'.
+        private long mGeneration;
+        private List<Entry> mEntries;
+        private long mDirModifyTime;
+        private BloomFilter<CharSequence> mNames;
+
+        @SuppressWarnings("deprecation")
+        Listing(String path) {
+            mObserver = new FileObserver(path, WATCH_MASK) {
+                @Override
+                public void onEvent(int event, @Nullable String file) {
+                    invalidate();
+                }
+            };
+        }
+
+        synchronized List<Entry> getEntries(long dirModifyTime) {
+            return dirModifyTime == mDirModifyTime ? mEntries : null;
+        }
+
+        /**
+         * @return A counter that changes whenever the listing is invalidated. Pass it to
+         *         {@link #setEntries}, so that a listing read while the directory was being
+         *         modified is discarded. Coarse modification times, e.g. on FAT formatted SD
+         *         cards, wouldn't catch that.
+         */
+        synchronized long getGeneration() {
+            return mGeneration;
+        }
+
+        synchronized void setEntries(List<Entry> entries, long dirModifyTime, long generation) {
+            if (generation != mGeneration) {
+                return;
+            }
+            mEntries = entries;
+            mDirModifyTime = dirModifyTime;
+            mNames = null;
+        }
+
+        synchronized boolean hasEntries() {
+            return mEntries != null;
+        }
+
+        synchronized boolean mightContain(String name, long dirModifyTime) {
+            if (mEntries == null || dirModifyTime != mDirModifyTime) {
+                return true;
+            }
+            if (mNames == null) {
+                mNames = BloomFilter.create(Funnels.unencodedCharsFunnel(),
+                        Math.max(mEntries.size(), 16), 0.01);
+                for (Entry entry : mEntries) {
+                    mNames.put(entry.name().toLowerCase(Locale.ROOT));
+                }
+            }
+            return mNames.mightContain(name.toLowerCase(Locale.ROOT));
+        }
+
+        synchronized void invalidate() {
+            mGeneration++;
+            mEntries = null;
+            mNames = null;
+        }
+
+        void startWatching() {
+            mObserver.startWatching();
+        }
+
+        void stopWatching() {
+            mObserver.stopWatching();
+        }
+    }
+}
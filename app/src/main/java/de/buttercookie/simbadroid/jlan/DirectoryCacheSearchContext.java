@@ -0,0 +1,119 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package de.buttercookie.simbadroid.jlan;
+
+import org.filesys.server.filesys.FileAttribute;
+import org.filesys.server.filesys.FileInfo;
+import org.filesys.server.filesys.SearchContext;
+import org.filesys.smb.server.disk.JavaNIODiskDriver;
+import org.filesys.util.WildCard;
+
+import java.util.List;
+
+/**
+ * Wildcard search over a directory listing from the {@link DirectoryCache}.
+ * <p>
+ * Returns the same information as the regular <code>JavaNIOSearchContext</code>, but without
+ * touching the disk for every entry.
+ */
+class DirectoryCacheSearchContext extends SearchContext {
+    private final List<DirectoryCache.Entry> mEntries;
+    private final WildCard mWildcard;
+    private final String mRelPath;
+
+    // Index of the next entry to check.
+    private int mIdx;
+
+    DirectoryCacheSearchContext(List<DirectoryCache.Entry> entries, WildCard wildcard,
+                                String relPath) {
+        mEntries = entries;
+        mWildcard = wildcard;
+        mRelPath = relPath == null || relPath.endsWith("\\") ? relPath : relPath + "\\";
+    }
+
+    @Override
+    public int getResumeId() {
+        return mIdx;
+    }
+
+    @Override
+    public boolean hasMoreFiles() {
+        return mIdx < mEntries.size();
+    }
+
+    @Override
+    public boolean nextFileInfo(FileInfo info) {
+        DirectoryCache.Entry entry = nextMatch();
+        if (entry == null) {
+            return false;
+        }
+
+        String name = entry.name();
+        int attr = 0;
+        if (entry.isDirectory()) {
+            attr += FileAttribute.Directory;
+            if (name.startsWith(".")) {
+                attr += FileAttribute.Hidden;
+            }
+        } else {
+            if (!entry.isWritable()) {
+                attr += FileAttribute.ReadOnly;
+            }
+            if (name.startsWith(".") || name.equalsIgnoreCase("Desktop.ini") ||
+                    name.equalsIgnoreCase("Thumbs.db")) {
+                attr += FileAttribute.Hidden;
+            }
+        }
+
+        info.setFileName(name);
+        info.setSize(entry.size());
+        info.setAllocationSize(entry.isDirectory() ? 0 : (entry.size() + 511L) & ~511L);
+        info.setFileAttributes(attr);
+        info.setFileId(((mRelPath != null ? mRelPath : "") + name).hashCode());
+
+        long modifyTime = entry.modifyTime();
+        info.setModifyDateTime(modifyTime);
+        info.setChangeDateTime(modifyTime);
+        info.setAccessDateTime(modifyTime);
+        info.setCreationDateTime(Math.min(JavaNIODiskDriver.getGlobalCreateDateTime(), modifyTime));
+        return true;
+    }
+
+    @Override
+    public String nextFileName() {
+        DirectoryCache.Entry entry = nextMatch();
+        return entry != null ? entry.name() : null;
+    }
+
+    @Override
+    public boolean restartAt(int resumeId) {
+        if (resumeId > mIdx) {
+            return false;
+        }
+        mIdx = resumeId;
+        return hasMoreFiles();
+    }
+
+    @Override
+    public boolean restartAt(FileInfo info) {
+        for (int i = 0; i < mEntries.size(); i++) {
+            if (mEntries.get(i).name().equalsIgnoreCase(info.getFileName())) {
+                mIdx = i + 1;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private DirectoryCache.Entry nextMatch() {
+        while (mIdx < mEntries.size()) {
+            DirectoryCache.Entry entry = mEntries.get(mIdx++);
+            if (mWildcard.matchesPattern(entry.name())) {
+                return entry;
+            }
+        }
+        return null;
+    }
+}
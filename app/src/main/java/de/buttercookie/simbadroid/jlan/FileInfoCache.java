@@ -0,0 +1,165 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package de.buttercookie.simbadroid.jlan;
+
+import androidx.annotation.Nullable;
+
+import org.filesys.server.filesys.FileInfo;
+import org.filesys.server.filesys.FileStatus;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Short-lived cache for file information and existence checks, including negative results.
+ * <p>
+ * Clients query the same paths over and over again (and keep probing for files like
+ * <code>desktop.ini</code> that usually don't exist), and every one of these lookups would
+ * otherwise be a stat through FUSE. Entries expire after a fixed time, so changes made by other
+ * apps become visible, and are dropped immediately when a path is modified through the server.
+ * <p>
+ * Entries are indexed by their lower-cased path, so invalidating a path also catches lookups
+ * that used a different case, but each entry only answers lookups for the exact path it was
+ * stored for.
+ */
+class FileInfoCache {
+    /**
+     * Returned by {@link #getInfo(String)} if the file is known not to exist.
+     */
+    static final FileInfo NONEXISTENT = new FileInfo();
+
+    private record Entry<V>(String path, V value, long expiry) {}
+
+    private final int mMaxEntries;
+    private final long mTtlNanos;
+
+    // Guarded by 'this'.
+    private long mGeneration;
+    private final LinkedHashMap<String, Entry<FileInfo>> mInfos =
+            new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Entry<FileStatus>> mStatuses =
+            new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * @param maxEntries The maximum number of entries kept for each type of lookup.
+     * @param ttlMs How long an entry stays valid.
+     */
+    FileInfoCache(int maxEntries, long ttlMs) {
+        mMaxEntries = maxEntries;
+        mTtlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMs);
+    }
+
+    /**
+     * @return A counter that changes whenever entries are invalidated. Pass it to the
+     *         <code>put</code> methods, so that results which were looked up while the path was
+     *         being modified are discarded.
+     */
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * @return A copy of the cached file information, {@link #NONEXISTENT} if the file is known
+     *         not to exist, or <code>null</code> if nothing is cached for the path.
+     */
+    @Nullable
+    synchronized FileInfo getInfo(String localPath) {
+        FileInfo info = lookup(mInfos, localPath);
+        if (info == null || info == NONEXISTENT) {
+            return info;
+        }
+        FileInfo copy = new FileInfo();
+        copy.copyFrom(info);
+        return copy;
+    }
+
+    /**
+     * @param info The file information, or <code>null</code> if the file doesn't exist.
+     */
+    synchronized void putInfo(String localPath, @Nullable FileInfo info, long generation) {
+        if (generation != mGeneration) {
+            return;
+        }
+        if (info != null) {
+            FileInfo copy = new FileInfo();
+            copy.copyFrom(info);
+            store(mInfos, localPath, copy);
+        } else {
+            store(mInfos, localPath, NONEXISTENT);
+            // A failed lookup ignoring case also means that the exact path doesn't exist.
+            store(mStatuses, localPath, FileStatus.NotExist);
+        }
+    }
+
+    @Nullable
+    synchronized FileStatus getStatus(String localPath) {
+        return lookup(mStatuses, localPath);
+    }
+
+    synchronized void putStatus(String localPath, FileStatus status, long generation) {
+        if (generation != mGeneration) {
+            return;
+        }
+        store(mStatuses, localPath, status);
+    }
+
+    /**
+     * Drop all entries for the given path.
+     */
+    synchronized void invalidate(String localPath) {
+        mGeneration++;
+        String key = getKey(localPath);
+        mInfos.remove(key);
+        mStatuses.remove(key);
+    }
+
+    /**
+     * Drop all entries for the given path and anything below it, e.g. after a directory has been
+     * renamed or deleted.
+     */
+    synchronized void invalidateTree(String localPath) {
+        mGeneration++;
+        String key = getKey(localPath);
+        String prefix = key.endsWith(File.separator) ? key : key + File.separator;
+        mInfos.keySet().removeIf(path -> path.equals(key) || path.startsWith(prefix));
+        mStatuses.keySet().removeIf(path -> path.equals(key) || path.startsWith(prefix));
+    }
+
+    synchronized void clear() {
+        mGeneration++;
+        mInfos.clear();
+        mStatuses.clear();
+    }
+
+    private <V> V lookup(Map<String, Entry<V>> map, String localPath) {
+        String key = getKey(localPath);
+        Entry<V> entry = map.get(key);
+        if (entry == null || !entry.path().equals(localPath)) {
+            return null;
+        }
+        if (System.nanoTime() - entry.expiry() > 0) {
+            map.remove(key);
+            return null;
+        }
+        return entry.value();
+    }
+
+    private <V> void store(LinkedHashMap<String, Entry<V>> map, String localPath, V value) {
+        map.put(getKey(localPath), new Entry<>(localPath, value, System.nanoTime() + mTtlNanos));
+        Iterator<Entry<V>> it = map.values().iterator();
+        while (map.size() > mMaxEntries && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    private static String getKey(String localPath) {
+        return localPath.toLowerCase(Locale.ROOT);
+    }
+}
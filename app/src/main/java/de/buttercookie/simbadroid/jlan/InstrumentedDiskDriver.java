@@ -0,0 +1,207 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package de.buttercookie.simbadroid.jlan;
+
+import androidx.annotation.Nullable;
+
+import org.filesys.server.SrvSession;
+import org.filesys.server.filesys.FileInfo;
+import org.filesys.server.filesys.FileOpenParams;
+import org.filesys.server.filesys.FileStatus;
+import org.filesys.server.filesys.NetworkFile;
+import org.filesys.server.filesys.SearchContext;
+import org.filesys.server.filesys.SearchFlags;
+import org.filesys.server.filesys.TreeConnection;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.EnumSet;
+
+/**
+ * Records every request passing through the disk driver in {@link IoMetrics}. Failed requests
+ * are counted as well, since they took time, too.
+ */
+class InstrumentedDiskDriver extends SimbaDiskDriver {
+    private final IoMetrics mMetrics;
+
+    InstrumentedDiskDriver(@Nullable MemoryPoolTuner memoryPoolTuner, IoMetrics metrics) {
+        super(memoryPoolTuner);
+        mMetrics = metrics;
+    }
+
+    @Override
+    public NetworkFile openFile(SrvSession sess, TreeConnection tree, FileOpenParams params)
+            throws IOException {
+        long start = System.nanoTime();
+        try {
+            NetworkFile file = super.openFile(sess, tree, params);
+            mMetrics.onFileOpened(sess, tree);
+            return file;
+        } finally {
+            mMetrics.record(sess, tree, IoMetrics.Op.OPEN, start, 0, 0);
+        }
+    }
+
+    @Override
+    public NetworkFile createFile(SrvSession sess, TreeConnection tree, FileOpenParams params)
+            throws IOException {
+        long start = System.nanoTime();
+        try {
+            NetworkFile file = super.createFile(sess, tree, params);
+            mMetrics.onFileOpened(sess, tree);
+            return file;
+        } finally {
+            mMetrics.record(sess, tree, IoMetrics.Op.CREATE, start, 0, 0);
+        }
+    }
+
+    @Override
+    public void closeFile(SrvSession sess, TreeConnection tree, NetworkFile file)
+            throws IOException {
+        long start = System.nanoTime();
+        try {
+            super.closeFile(sess, tree, file);
+        } finally {
+            mMetrics.onFileClosed(sess, tree);
+            mMetrics.record(sess, tree, IoMetrics.Op.CLOSE, start, 0, 0);
+        }
+    }
+
+    @Override
+    public int readFile(SrvSession sess, TreeConnection tree, NetworkFile file,
+                        byte[] buf, int bufPos, int siz, long filePos) throws IOException {
+        long start = System.nanoTime();
+        int read = 0;
+        try {
+            read = super.readFile(sess, tree, file, buf, bufPos, siz, filePos);
+            return read;
+        } finally {
+            mMetrics.record(sess, tree, IoMetrics.Op.READ, start, read, 0);
+        }
+    }
+
+    @Override
+    public int writeFile(SrvSession sess, TreeConnection tree, NetworkFile file,
+                         byte[] buf, int bufoff, int siz, long fileoff) throws IOException {
+        long start = System.nanoTime();
+        int written = 0;
+        try {
+            written = super.writeFile(sess, tree, file, buf, bufoff, siz, fileoff);
+            return written;
+        } finally {
+            mMetrics.record(sess, tree, IoMetrics.Op.WRITE, start, 0, written);
+        }
+    }
+
+    @Override
+    public void flushFile(SrvSession sess, TreeConnection tree, NetworkFile file)
+            throws IOException {
+        long start = System.nanoTime();
+        try {
+            super.flushFile(sess, tree, file);
+        } finally {
+            mMetrics.record(sess, tree, IoMetrics.Op.FLUSH, start, 0, 0);
+        }
+    }
+
+    @Override
+    public void truncateFile(SrvSession sess, TreeConnection tree, NetworkFile file, long siz)
+            throws IOException {
+        long start = System.nanoTime();
+        try {
+            super.truncateFile(sess, tree, file, siz);
+        } finally {
+            mMetrics.record(sess, tree, IoMetrics.Op.TRUNCATE, start, 0, 0);
+        }
+    }
+
+    @Override
+    public FileInfo getFileInformation(SrvSession sess, TreeConnection tree, String name)
+            throws IOException {
+        long start = System.nanoTime();
+        try {
+            return super.getFileInformation(sess, tree, name);
+        } finally {
+            mMetrics.record(sess, tree, IoMetrics.Op.GET_INFO, start, 0, 0);
+        }
+    }
+
+    @Override
+    public FileStatus fileExists(SrvSession sess, TreeConnection tree, String name) {
+        long start = System.nanoTime();
+        try {
+            return super.fileExists(sess, tree, name);
+        } finally {
+            mMetrics.record(sess, tree, IoMetrics.Op.EXISTS, start, 0, 0);
+        }
+    }
+
+    @Override
+    public void setFileInformation(SrvSession sess, TreeConnection tree, String name,
+                                   FileInfo info) throws IOException {
+        long start = System.nanoTime();
+        try {
+            super.setFileInformation(sess, tree, name, info);
+        } finally {
+            mMetrics.record(sess, tree, IoMetrics.Op.SET_INFO, start, 0, 0);
+        }
+    }
+
+    @Override
+    public SearchContext startSearch(SrvSession sess, TreeConnection tree, String searchPath,
+                                     int attrib, EnumSet<SearchFlags> flags)
+            throws FileNotFoundException {
+        long start = System.nanoTime();
+        try {
+            return super.startSearch(sess, tree, searchPath, attrib, flags);
+        } finally {
+            mMetrics.record(sess, tree, IoMetrics.Op.SEARCH, start, 0, 0);
+        }
+    }
+
+    @Override
+    public void renameFile(SrvSession sess, TreeConnection tree, String oldName, String newName,
+                           NetworkFile netFile) throws IOException {
+        long start = System.nanoTime();
+        try {
+            super.renameFile(sess, tree, oldName, newName, netFile);
+        } finally {
+            mMetrics.record(sess, tree, IoMetrics.Op.RENAME, start, 0, 0);
+        }
+    }
+
+    @Override
+    public void deleteFile(SrvSession sess, TreeConnection tree, String name)
+            throws IOException {
+        long start = System.nanoTime();
+        try {
+            super.deleteFile(sess, tree, name);
+        } finally {
+            mMetrics.record(sess, tree, IoMetrics.Op.DELETE, start, 0, 0);
+        }
+    }
+
+    @Override
+    public void createDirectory(SrvSession sess, TreeConnection tree, FileOpenParams params)
+            throws IOException {
+        long start = System.nanoTime();
+        try {
+            super.createDirectory(sess, tree, params);
+        } finally {
+            mMetrics.record(sess, tree, IoMetrics.Op.CREATE_DIR, start, 0, 0);
+        }
+    }
+
+    @Override
+    public void deleteDirectory(SrvSession sess, TreeConnection tree, String dir)
+            throws IOException {
+        long start = System.nanoTime();
+        try {
+            super.deleteDirectory(sess, tree, dir);
+        } finally {
+            mMetrics.record(sess, tree, IoMetrics.Op.DELETE_DIR, start, 0, 0);
+        }
+    }
+}
@@ -0,0 +1,292 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package de.buttercookie.simbadroid.jlan;
+
+import androidx.annotation.Nullable;
+
+import org.filesys.server.SessionListener;
+import org.filesys.server.SrvSession;
+import org.filesys.server.filesys.TreeConnection;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Live I/O statistics of the server, per share and per client.
+ * <p>
+ * All counters are {@link LongAdder}s, so the worker threads recording requests in parallel
+ * don't contend with each other. Reading the counters is comparatively expensive and only
+ * happens when a {@link Snapshot} is taken.
+ */
+public class IoMetrics implements SessionListener {
+    public enum Op {
+        OPEN, CREATE, CLOSE, READ, WRITE, FLUSH, TRUNCATE, GET_INFO, SET_INFO, EXISTS, SEARCH,
+        RENAME, DELETE, CREATE_DIR, DELETE_DIR
+    }
+
+    /**
+     * Bucket <code>i</code> of the latency histograms counts requests that took less than
+     * <code>2^i</code> microseconds, the last bucket everything slower.
+     */
+    public static final int LATENCY_BUCKETS = 24;
+
+    /**
+     * @param opCounts Number of requests, indexed by {@link Op#ordinal()}.
+     * @param latencyBuckets Request latency histogram, see {@link #LATENCY_BUCKETS}.
+     */
+    public record Counters(long bytesRead, long bytesWritten, long openHandles, long sessions,
+                           long[] opCounts, long[] latencyBuckets) {
+        public long getOpCount(Op op) {
+            return opCounts[op.ordinal()];
+        }
+
+        public long getTotalOps() {
+            long total = 0;
+            for (long count : opCounts) {
+                total += count;
+            }
+            return total;
+        }
+
+        /**
+         * @return An upper bound for the given latency percentile in microseconds, or 0 if no
+         * requests have been recorded.
+         */
+        public long getLatencyPercentileUs(double percentile) {
+            long total = 0;
+            for (long count : latencyBuckets) {
+                total += count;
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(total * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < latencyBuckets.length; i++) {
+                seen += latencyBuckets[i];
+                if (seen >= rank) {
+                    return 1L << i;
+                }
+            }
+            return 1L << (latencyBuckets.length - 1);
+        }
+
+        private Counters add(Counters other) {
+            long[] ops = opCounts.clone();
+            for (int i = 0; i < ops.length; i++) {
+                ops[i] += other.opCounts[i];
+            }
+            long[] latencies = latencyBuckets.clone();
+            for (int i = 0; i < latencies.length; i++) {
+                latencies[i] += other.latencyBuckets[i];
+            }
+            return new Counters(bytesRead + other.bytesRead, bytesWritten + other.bytesWritten,
+                    openHandles + other.openHandles, sessions + other.sessions, ops, latencies);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Counters other && bytesRead == other.bytesRead &&
+                    bytesWritten == other.bytesWritten && openHandles == other.openHandles &&
+                    sessions == other.sessions && Arrays.equals(opCounts, other.opCounts) &&
+                    Arrays.equals(latencyBuckets, other.latencyBuckets);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(bytesRead, bytesWritten, openHandles, sessions,
+                    Arrays.hashCode(opCounts), Arrays.hashCode(latencyBuckets));
+        }
+    }
+
+    /**
+     * @param timestampNanos When the snapshot was taken, in {@link System#nanoTime()}.
+     * @param total The sum of all shares, plus the number of active sessions.
+     * @param clients Keyed by the client's IP address.
+     * @param skippedLookups Number of lookups for junk files that were answered from the
+     *                       directory cache without accessing the file system.
+     */
+    public record Snapshot(long timestampNanos, Counters total, Map<String, Counters> shares,
+                           Map<String, Counters> clients, long skippedLookups) {
+        /**
+         * @return <code>true</code> if nothing has happened between the two snapshots.
+         */
+        public boolean hasSameCounters(Snapshot other) {
+            return total.equals(other.total) && shares.equals(other.shares) &&
+                    clients.equals(other.clients) && skippedLookups == other.skippedLookups;
+        }
+    }
+
+    private final Map<String, Stats> mShares = new ConcurrentHashMap<>();
+    private final Map<InetAddress, Stats> mClients = new ConcurrentHashMap<>();
+    private final LongAdder mSessions = new LongAdder();
+    private final List<LongSupplier> mSkippedLookupCounters = new CopyOnWriteArrayList<>();
+
+    /**
+     * Include a counter of lookups that didn't need to access the file system in
+     * {@link Snapshot#skippedLookups()}.
+     */
+    void addSkippedLookupCounter(LongSupplier counter) {
+        mSkippedLookupCounters.add(counter);
+    }
+
+    /**
+     * Record a completed request.
+     *
+     * @param startNanos When the request started, in {@link System#nanoTime()}.
+     */
+    void record(@Nullable SrvSession<?> sess, TreeConnection tree, Op op, long startNanos,
+                long bytesRead, long bytesWritten) {
+        long latencyUs = (System.nanoTime() - startNanos) / 1000;
+        getShareStats(tree).record(op, latencyUs, bytesRead, bytesWritten);
+        Stats client = getClientStats(sess);
+        if (client != null) {
+            client.record(op, latencyUs, bytesRead, bytesWritten);
+        }
+    }
+
+    void onFileOpened(@Nullable SrvSession<?> sess, TreeConnection tree) {
+        getShareStats(tree).openHandles.increment();
+        Stats client = getClientStats(sess);
+        if (client != null) {
+            client.openHandles.increment();
+        }
+    }
+
+    void onFileClosed(@Nullable SrvSession<?> sess, TreeConnection tree) {
+        getShareStats(tree).openHandles.decrement();
+        Stats client = getClientStats(sess);
+        if (client != null) {
+            client.openHandles.decrement();
+        }
+    }
+
+    @Override
+    public void sessionCreated(SrvSession sess) {
+        mSessions.increment();
+        InetAddress address = sess.getRemoteAddress();
+        if (address == null) {
+            return;
+        }
+        // Clients are only added here, so that requests still finishing after a client has
+        // disconnected don't add it back.
+        mClients.compute(address, (key, client) -> {
+            if (client == null) {
+                client = new Stats();
+            }
+            client.sessions.increment();
+            return client;
+        });
+    }
+
+    @Override
+    public void sessionClosed(SrvSession sess) {
+        mSessions.decrement();
+        InetAddress address = sess.getRemoteAddress();
+        if (address == null) {
+            return;
+        }
+        // Forget clients once they have disconnected completely.
+        mClients.computeIfPresent(address, (key, client) -> {
+            client.sessions.decrement();
+            return client.sessions.sum() > 0 ? client : null;
+        });
+    }
+
+    @Override
+    public void sessionLoggedOn(SrvSession sess) {}
+
+    public Snapshot getSnapshot() {
+        Map<String, Counters> shares = new HashMap<>();
+        Counters total = Stats.EMPTY;
+        for (Map.Entry<String, Stats> entry : mShares.entrySet()) {
+            Counters counters = entry.getValue().getCounters();
+            shares.put(entry.getKey(), counters);
+            total = total.add(counters);
+        }
+        total = new Counters(total.bytesRead(), total.bytesWritten(), total.openHandles(),
+                mSessions.sum(), total.opCounts(), total.latencyBuckets());
+
+        Map<String, Counters> clients = new HashMap<>();
+        for (Map.Entry<InetAddress, Stats> entry : mClients.entrySet()) {
+            clients.put(entry.getKey().getHostAddress(), entry.getValue().getCounters());
+        }
+        long skippedLookups = 0;
+        for (LongSupplier counter : mSkippedLookupCounters) {
+            skippedLookups += counter.getAsLong();
+        }
+        return new Snapshot(System.nanoTime(), total, Collections.unmodifiableMap(shares),
+                Collections.unmodifiableMap(clients), skippedLookups);
+    }
+
+    private Stats getShareStats(TreeConnection tree) {
+        String name = tree.getSharedDevice().getName();
+        Stats stats = mShares.get(name);
+        return stats != null ? stats : mShares.computeIfAbsent(name, key -> new Stats());
+    }
+
+    /**
+     * @return The stats of the session's client, or <code>null</code> if it isn't connected.
+     */
+    @Nullable
+    private Stats getClientStats(@Nullable SrvSession<?> sess) {
+        InetAddress address = sess != null ? sess.getRemoteAddress() : null;
+        return address != null ? mClients.get(address) : null;
+    }
+
+    private static class Stats {
+        static final Counters EMPTY = new Counters(0, 0, 0, 0, new long[Op.values().length],
+                new long[LATENCY_BUCKETS]);
+
+        final LongAdder bytesRead = new LongAdder();
+        final LongAdder bytesWritten = new LongAdder();
+        final LongAdder openHandles = new LongAdder();
+        final LongAdder sessions = new LongAdder();
+        final LongAdder[] ops = newAdders(Op.values().length);
+        final LongAdder[] latencies = newAdders(LATENCY_BUCKETS);
+
+        void record(Op op, long latencyUs, long read, long written) {
+            ops[op.ordinal()].increment();
+            int bucket = 64 - Long.numberOfLeadingZeros(latencyUs);
+            latencies[Math.min(bucket, LATENCY_BUCKETS - 1)].increment();
+            if (read > 0) {
+                bytesRead.add(read);
+            }
+            if (written > 0) {
+                bytesWritten.add(written);
+            }
+        }
+
+        Counters getCounters() {
+            return new Counters(bytesRead.sum(), bytesWritten.sum(), openHandles.sum(),
+                    sessions.sum(), sum(ops), sum(latencies));
+        }
+
+        private static LongAdder[] newAdders(int count) {
+            LongAdder[] adders = new LongAdder[count];
+            for (int i = 0; i < count; i++) {
+                adders[i] = new LongAdder();
+            }
+            return adders;
+        }
+
+        private static long[] sum(LongAdder[] adders) {
+            long[] sums = new long[adders.length];
+            for (int i = 0; i < adders.length; i++) {
+                sums[i] = adders[i].sum();
+            }
+            return sums;
+        }
+    }
+}
@@ -5,7 +5,8 @@
 package de.buttercookie.simbadroid.jlan;
 
 import android.content.Context;
-import java.net.InetAddress;
+import android.content.SharedPreferences;
+import android.util.Log;
 
 import com.google.common.util.concurrent.Monitor;
 
@@ -14,15 +15,110 @@ import org.filesys.server.NetworkServer;
 import org.filesys.server.config.InvalidConfigurationException;
 import org.filesys.smb.server.SMBServer;
 
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
 import de.buttercookie.simbadroid.util.ThreadUtils;
 
 public class JLANFileServer {
+    private static final String LOGTAG = "JLANFileServer";
+
+    private static final ExecutorService sStartupExecutor = Executors.newCachedThreadPool();
+
+    public enum StartupStage {
+        /** Looking for the storage volumes to share and loading the settings. */
+        PREPARING,
+        /** Building the server configuration. */
+        CONFIGURING,
+    }
+
     private final JLANFileServerConfiguration mCfg;
     private boolean mStarted = false;
+    private List<InetAddress> mBindAddresses = Collections.emptyList();
+    // There's one name server per address, so they aren't registered with the configuration.
+    private final Map<InetAddress, NetBIOSNameServer> mNameServers = new HashMap<>();
+    private SMBServer mSmbServer;
     private final Monitor startupMonitor = new Monitor();
 
-    public JLANFileServer(Context context, String hostName) throws Exception {
-        mCfg = new JLANFileServerConfiguration(context, hostName);
+    private JLANFileServer(JLANFileServerConfiguration cfg) {
+        mCfg = cfg;
+    }
+
+    /**
+     * Create a server without blocking the calling thread.
+     * <p>
+     * The storage volumes are looked up and the settings are loaded in parallel on background
+     * threads, and the configuration is built once both are done.
+     *
+     * @param progress Called on an arbitrary thread whenever a new stage begins.
+     * @return Completes with a server that is ready to be started.
+     */
+    public static CompletableFuture<JLANFileServer> create(Context context, String hostName,
+                                                           Consumer<StartupStage> progress) {
+        ServerPlatform platform = new AndroidServerPlatform(context);
+        progress.accept(StartupStage.PREPARING);
+        var shares = CompletableFuture.supplyAsync(platform::getShares, sStartupExecutor);
+        var memoryPoolPrefs =
+                CompletableFuture.supplyAsync(platform::getMemoryPoolPreferences, sStartupExecutor);
+        var volumeInfo = CompletableFuture.supplyAsync(platform::getVolumeInfo, sStartupExecutor);
+        return CompletableFuture.allOf(shares, memoryPoolPrefs, volumeInfo).thenApplyAsync(v -> {
+            progress.accept(StartupStage.CONFIGURING);
+            ServerPlatform prepared = new PreparedPlatform(shares.join(), memoryPoolPrefs.join(),
+                    volumeInfo.join(), platform.needsDesugaringWorkarounds());
+            try {
+                return new JLANFileServer(new JLANFileServerConfiguration(prepared, hostName));
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, sStartupExecutor);
+    }
+
+    /**
+     * @return <code>true</code> if the server can serve several addresses at once on this
+     *         device, otherwise only the first of its bind addresses is served.
+     */
+    public static boolean supportsMultipleAddresses(Context context) {
+        // Serving several addresses needs the NIO connection handler, which is disabled together
+        // with the other desugaring workarounds.
+        return !new AndroidServerPlatform(context).needsDesugaringWorkarounds();
+    }
+
+    /**
+     * A platform whose answers have already been looked up.
+     */
+    private record PreparedPlatform(List<ServerPlatform.Share> shares,
+                                    SharedPreferences memoryPoolPreferences,
+                                    VolumeInfo volumeInfo,
+                                    boolean desugaringWorkarounds) implements ServerPlatform {
+        @Override
+        public List<Share> getShares() {
+            return shares;
+        }
+
+        @Override
+        public SharedPreferences getMemoryPoolPreferences() {
+            return memoryPoolPreferences;
+        }
+
+        @Override
+        public VolumeInfo getVolumeInfo() {
+            return volumeInfo;
+        }
+
+        @Override
+        public boolean needsDesugaringWorkarounds() {
+            return desugaringWorkarounds;
+        }
     }
 
     public void start() {
@@ -34,8 +130,10 @@ public class JLANFileServer {
             }
 
             try {
-                mCfg.addServer(new NetBIOSNameServer(mCfg));
-                mCfg.addServer(new SMBServer(mCfg));
+                mSmbServer = new SMBServer(mCfg);
+                mSmbServer.addSessionListener(mCfg.getIoMetrics());
+                mSmbServer.addSessionListener(mCfg.getLocalAddressFilter());
+                mCfg.addServer(mSmbServer);
             } catch (Exception e) {
                 throw new RuntimeException(e);
             }
@@ -44,6 +142,10 @@ public class JLANFileServer {
                 NetworkServer server = mCfg.getServer(i);
                 server.startServer();
             }
+            updateNameServers();
+            if (mCfg.getWorkerPool() != null) {
+                mCfg.getWorkerPool().start();
+            }
             mStarted = true;
         } finally {
             startupMonitor.leave();
@@ -56,27 +158,142 @@ public class JLANFileServer {
             return;
         }
 
+        for (NetBIOSNameServer nameServer : mNameServers.values()) {
+            stopNameServer(nameServer);
+        }
+        mNameServers.clear();
         for (int i = 0; i < mCfg.numberOfServers(); i++) {
             NetworkServer server = mCfg.getServer(i);
             server.shutdownServer(false);
         }
         mCfg.removeAllServers();
+        if (mCfg.getWorkerPool() != null) {
+            mCfg.getWorkerPool().stop();
+        }
+        mCfg.getMemoryPoolTuner().save();
         ThreadUtils.postToBackgroundThread(this::tryRemoveTrashcanFolders);
+        mSmbServer = null;
         mStarted = false;
     }
 
+    /**
+     * Stop the server if necessary and release the caches and buffers of all shares, writing out
+     * any data that is still pending. The server can't be used anymore afterwards.
+     */
+    public void close() {
+        ThreadUtils.assertOnUiThread();
+        stop();
+        // Queued behind removing the trashcan folders, which still needs the shares.
+        ThreadUtils.postToBackgroundThread(mCfg::closeConfiguration);
+    }
+
+    /**
+     * Move the running server to a different set of addresses.
+     * <p>
+     * If supported, only the NetBIOS name servers are adjusted, and SMB sessions stay connected
+     * unless their address has disappeared. Otherwise only the first address is served, and the
+     * whole server is restarted if that changes.
+     *
+     * @param addresses Must not be empty.
+     */
+    public void rebind(List<InetAddress> addresses) {
+        ThreadUtils.assertOnUiThread();
+        if (!mStarted) {
+            setBindAddresses(addresses);
+            return;
+        }
+        if (addresses.equals(mBindAddresses)) {
+            return;
+        }
+        if (!mCfg.supportsHotRebind()) {
+            boolean restart = !addresses.get(0).equals(mBindAddresses.get(0));
+            if (restart) {
+                stop();
+            }
+            setBindAddresses(addresses);
+            if (restart) {
+                start();
+            }
+            return;
+        }
+
+        Log.d(LOGTAG, "Moving server to " + addresses);
+        setBindAddresses(addresses);
+        updateNameServers();
+
+        SMBServer smbServer = mSmbServer;
+        LocalAddressFilter filter = mCfg.getLocalAddressFilter();
+        ThreadUtils.postToBackgroundThread(() -> filter.closeOrphanedSessions(smbServer));
+    }
+
     public boolean running() {
         return mStarted;
     }
 
-    public void setBindAddress(InetAddress address) {
+    /**
+     * @return The I/O statistics collected since the server was created.
+     */
+    public IoMetrics.Snapshot getMetricsSnapshot() {
+        return mCfg.getIoMetrics().getSnapshot();
+    }
+
+    /**
+     * @return The addresses the server is reachable on, which are only the first of the bind
+     *         addresses if the server doesn't support serving on multiple addresses.
+     */
+    public List<InetAddress> getServedAddresses() {
+        return mCfg.supportsHotRebind() || mBindAddresses.isEmpty() ?
+                mBindAddresses : mBindAddresses.subList(0, 1);
+    }
+
+    /**
+     * @param addresses Must not be empty. Only the first address is used if the server doesn't
+     *                  support serving on multiple addresses.
+     */
+    public void setBindAddresses(List<InetAddress> addresses) {
         try {
-            mCfg.setBindAddress(address);
+            mCfg.setBindAddresses(addresses);
+            mBindAddresses = List.copyOf(addresses);
         } catch (InvalidConfigurationException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Start a name server for each IPv4 address we're serving on and stop the ones for addresses
+     * we no longer serve on. NetBIOS doesn't exist for IPv6.
+     */
+    private void updateNameServers() {
+        List<InetAddress> addresses = getServedAddresses().stream()
+                .filter(addr -> addr instanceof Inet4Address)
+                .toList();
+        Iterator<Map.Entry<InetAddress, NetBIOSNameServer>> it =
+                mNameServers.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<InetAddress, NetBIOSNameServer> entry = it.next();
+            if (!addresses.contains(entry.getKey())) {
+                stopNameServer(entry.getValue());
+                it.remove();
+            }
+        }
+        for (InetAddress address : addresses) {
+            if (!mNameServers.containsKey(address)) {
+                try {
+                    NetBIOSNameServer nameServer = mCfg.createNameServer(address);
+                    nameServer.startServer();
+                    mNameServers.put(address, nameServer);
+                } catch (Exception e) {
+                    Log.w(LOGTAG, "Error starting NetBIOS name server on " + address, e);
+                }
+            }
+        }
+    }
+
+    private void stopNameServer(NetBIOSNameServer nameServer) {
+        nameServer.shutdownServer(false);
+        mCfg.removeListener(nameServer);
+    }
+
     private void tryRemoveTrashcanFolders() {
         // If the server is already starting up again, there's no point in trying to remove the
         // trashcan folders.
@@ -4,15 +4,11 @@
 
 package de.buttercookie.simbadroid.jlan;
 
-import android.content.Context;
-import android.net.LinkAddress;
-import android.os.Build;
-import android.os.Environment;
-
 import androidx.annotation.Nullable;
 
 import org.filesys.debug.DebugConfigSection;
 import org.filesys.netbios.NetworkSettings;
+import org.filesys.netbios.server.NetBIOSNameServer;
 import org.filesys.server.SrvSession;
 import org.filesys.server.auth.ClientInfo;
 import org.filesys.server.auth.ISMBAuthenticator;
@@ -32,32 +28,71 @@ import org.filesys.server.filesys.DiskInterface;
 import org.filesys.server.filesys.DiskSharedDevice;
 import org.filesys.server.filesys.FilesystemsConfigSection;
 import org.filesys.smb.server.SMBConfigSection;
+import org.filesys.server.thread.ThreadRequestPool;
 import org.filesys.smb.server.SMBSrvSession;
 import org.springframework.extensions.config.element.GenericConfigElement;
 
-import java.io.File;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.InterfaceAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
+import java.util.ArrayList;
 import java.util.EnumSet;
 import java.util.Enumeration;
 import java.util.List;
 
-import de.buttercookie.simbadroid.util.FileUtils;
-import de.buttercookie.simbadroid.util.SdCard;
-
 public class JLANFileServerConfiguration extends ServerConfiguration {
     private static final int DefaultThreadPoolInit = 6;
     private static final int DefaultThreadPoolMax = 6;
+    // Size the worker pool from the core count and add workers while requests are backing up.
+    private static final boolean DefaultThreadPoolAdaptive = true;
+    private static final int AdaptiveThreadPoolMaxPerCore = 8;
+
+    // Largest WRITE_ANDX payload JFileServer accepts with CAP_LARGE_WRITEX (17-bit data length).
+    // READ_ANDX responses are limited to 64 KiB by the protocol handler.
+    private static final int DefaultMaxWriteSize = 0x1FFFF;
+    // Room for the NetBIOS, SMB and WRITE_ANDX headers in front of the payload.
+    private static final int WriteAndXOverhead = 1025;
+    // Packets larger than the largest tier are allocated outside of the pool up to this size.
+    private static final int DefaultMaxOversizedPacket = MemoryPoolTuner.LARGE_TIER_BUF_SIZE;
+
+    private static final int[] DefaultMemoryPoolBufSizes =
+            {256, 4096, 16384, 66000, DefaultMaxWriteSize + WriteAndXOverhead};
+    private static final int[] DefaultMemoryPoolInitAlloc = {20, 20, 5, 5, 2};
+    private static final int[] DefaultMemoryPoolMaxAlloc = {100, 50, 50, 50, 16};
+    // Adjust the tier counts to the usage recorded during previous runs.
+    private static final boolean DefaultMemoryPoolAutoTune = true;
+    // Always add a 1 MiB tier, instead of only once large requests have been seen.
+    private static final boolean DefaultMemoryPoolLargeTier = false;
+
+    private static final int DefaultReadAheadMaxWindow = 1024 * 1024;
+    private static final int DefaultReadAheadWindows = 2;
+    private static final int DefaultReadAheadMaxBuffers = 16;
+    // Serve reads with a single positional read instead of JavaNIONetworkFile's seek + read.
+    private static final boolean DefaultDirectRead = true;
+
+    private static final int DefaultWriteBehindChunk = 1024 * 1024;
+    private static final int DefaultWriteBehindDelay = 500;
+    // Set to bypass write coalescing and pass every write straight through to the disk.
+    private static final boolean DefaultWriteBehindStrict = false;
+
+    private static final int DefaultDirCacheMaxDirs = 64;
+
+    private static final int DefaultFileInfoCacheSize = 2048;
+    private static final int DefaultFileInfoCacheTtl = 2000;
+
+    private static final String DefaultJunkFilePatterns =
+            "desktop.ini,Thumbs.db,.DS_Store,._*,autorun.inf,folder.jpg";
 
-    private static final int[] DefaultMemoryPoolBufSizes = {256, 4096, 16384, 66000};
-    private static final int[] DefaultMemoryPoolInitAlloc = {20, 20, 5, 5};
-    private static final int[] DefaultMemoryPoolMaxAlloc = {100, 50, 50, 50};
+    private final AdaptiveWorkerPool mWorkerPool;
+    private final MemoryPoolTuner mMemoryPoolTuner;
+    private final IoMetrics mIoMetrics = new IoMetrics();
+    private final LocalAddressFilter mLocalAddressFilter = new LocalAddressFilter();
+    private final boolean mHotRebind;
 
-    public JLANFileServerConfiguration(Context context, String hostName)
+    JLANFileServerConfiguration(ServerPlatform platform, String hostName)
             throws InvalidConfigurationException, DeviceContextException {
         super(hostName);
 
@@ -70,9 +105,29 @@ public class JLANFileServerConfiguration extends ServerConfiguration {
 
         // Core
         CoreServerConfigSection coreConfig = new CoreServerConfigSection(this);
-        coreConfig.setMemoryPool(DefaultMemoryPoolBufSizes, DefaultMemoryPoolInitAlloc,
-                DefaultMemoryPoolMaxAlloc);
-        coreConfig.setThreadPool(DefaultThreadPoolInit, DefaultThreadPoolMax);
+        List<MemoryPoolTuner.Tier> memoryPoolTiers = new ArrayList<>();
+        for (int i = 0; i < DefaultMemoryPoolBufSizes.length; i++) {
+            memoryPoolTiers.add(new MemoryPoolTuner.Tier(DefaultMemoryPoolBufSizes[i],
+                    DefaultMemoryPoolInitAlloc[i], DefaultMemoryPoolMaxAlloc[i]));
+        }
+        mMemoryPoolTuner = new MemoryPoolTuner(platform.getMemoryPoolPreferences(),
+                memoryPoolTiers, DefaultMemoryPoolAutoTune, DefaultMemoryPoolLargeTier);
+        coreConfig.setMemoryPool(mMemoryPoolTuner.getBufferSizes(),
+                mMemoryPoolTuner.getInitialAllocations(), mMemoryPoolTuner.getMaximumAllocations());
+        mMemoryPoolTuner.attach(coreConfig.getMemoryPool());
+        coreConfig.setMaximumOversizedPacket(DefaultMaxOversizedPacket);
+        if (DefaultThreadPoolAdaptive) {
+            int cores = Runtime.getRuntime().availableProcessors();
+            int baseWorkers = Math.max(cores, ThreadRequestPool.MinimumWorkerThreads);
+            int maxWorkers = Math.min(cores * AdaptiveThreadPoolMaxPerCore,
+                    ThreadRequestPool.MaximumWorkerThreads);
+            coreConfig.setThreadPool(baseWorkers, maxWorkers);
+            mWorkerPool = new AdaptiveWorkerPool(coreConfig.getThreadPool(), baseWorkers,
+                    maxWorkers);
+        } else {
+            coreConfig.setThreadPool(DefaultThreadPoolInit, DefaultThreadPoolMax);
+            mWorkerPool = null;
+        }
         coreConfig.getThreadPool().setDebug(false);
 
         // Global
@@ -89,17 +144,17 @@ public class JLANFileServerConfiguration extends ServerConfiguration {
 
         // Shares
         FilesystemsConfigSection filesysConfig = new FilesystemsConfigSection(this);
-        DiskInterface diskInterface = new SimbaDiskDriver();
-        File sdCard = SdCard.findSdCardPath(context, null);
-        if (sdCard != null) {
-            addShare(diskInterface, this, filesysConfig, secConfig,
-                    "External", sdCard.getAbsolutePath(),
-                    FileUtils.getTrashcanPath(context, sdCard).getAbsolutePath());
+        SimbaDiskDriver.setVolumeInfo(platform.getVolumeInfo());
+        DiskInterface diskInterface = new InstrumentedDiskDriver(mMemoryPoolTuner, mIoMetrics);
+        for (ServerPlatform.Share share : platform.getShares()) {
+            DiskDeviceContext context = addShare(diskInterface, this, filesysConfig, secConfig,
+                    share.name(), share.path(), share.trashcanPath());
+            if (context instanceof SimbaDiskDeviceContext diskContext &&
+                    diskContext.getJunkFileFilter() != null) {
+                mIoMetrics.addSkippedLookupCounter(
+                        diskContext.getJunkFileFilter()::getShortCircuitCount);
+            }
         }
-        File internal = Environment.getExternalStorageDirectory();
-        addShare(diskInterface, this, filesysConfig, secConfig,
-                "Internal", internal.getAbsolutePath(),
-                FileUtils.getTrashcanPath(context, internal).getAbsolutePath());
 
         // SMB
         SMBConfigSection smbConfig = new SMBConfigSection(this);
@@ -116,7 +171,9 @@ public class JLANFileServerConfiguration extends ServerConfiguration {
             @Override
             public AuthStatus authenticateUser(ClientInfo client, SrvSession sess,
                                                PasswordAlgorithm alg) {
-                return AuthStatus.AUTHENTICATED;
+                // In case a session through another address hasn't been hung up yet.
+                return mLocalAddressFilter.accepts(sess) ?
+                        AuthStatus.AUTHENTICATED : AuthStatus.DISALLOW;
             }
         };
         authenticator.setDebug(false);
@@ -129,24 +186,63 @@ public class JLANFileServerConfiguration extends ServerConfiguration {
         smbConfig.setNetBIOSDebug(false);
         smbConfig.setHostAnnounceDebug(false);
         smbConfig.setSessionDebugFlags(EnumSet.noneOf(SMBSrvSession.Dbg.class));
-        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+        if (platform.needsDesugaringWorkarounds()) {
             // Core lib desugaring is missing some bits in the network code
             smbConfig.setDisableNIOCode(true);
             // Core lib desugaring doesn't handle HashMap's new KeySetView usage.
             smbConfig.setDisableHashedOpenFileMap(true);
         }
+        // Without NIO, the sessions' local addresses are unknown, so we have to stick to
+        // binding to a specific address.
+        mHotRebind = !smbConfig.hasDisableNIOCode();
+    }
+
+    /**
+     * Set the addresses to serve on. With the NIO connection handler, the SMB listeners are bound
+     * to the wildcard address instead, which accepts both IPv4 and IPv6 connections, and the
+     * addresses are enforced by the {@link LocalAddressFilter}, so this may be called while the
+     * SMB server is running. Otherwise, only the first address is served.
+     *
+     * @param bindAddresses Must not be empty. The first address is the primary one, which is
+     *                      used for everything that can't be done per address.
+     */
+    void setBindAddresses(List<InetAddress> bindAddresses) throws InvalidConfigurationException {
+        final SMBConfigSection smbConfig =
+                (SMBConfigSection) getConfigSection(SMBConfigSection.SectionName);
+
+        InetAddress primary = bindAddresses.get(0);
+        if (mHotRebind) {
+            mLocalAddressFilter.setAddresses(bindAddresses);
+        } else {
+            smbConfig.setSMBBindAddress(primary);
+        }
+        setNetBIOSAddress(smbConfig, primary);
+        NetworkSettings.setBroadcastMask(smbConfig.getBroadcastMask());
     }
 
-    void setBindAddress(InetAddress bindAddress) throws InvalidConfigurationException {
+    /**
+     * Create a NetBIOS name server answering on the given address, with the broadcast mask of
+     * that address's interface.
+     */
+    NetBIOSNameServer createNameServer(InetAddress address) throws Exception {
         final SMBConfigSection smbConfig =
                 (SMBConfigSection) getConfigSection(SMBConfigSection.SectionName);
 
-        smbConfig.setSMBBindAddress(bindAddress);
-        smbConfig.setNetBIOSBindAddress(bindAddress);
+        // The name server picks up its address when it is created, so the configuration only
+        // needs to point to this address temporarily.
+        InetAddress primary = smbConfig.getNetBIOSBindAddress();
+        setNetBIOSAddress(smbConfig, address);
+        try {
+            return new NetBIOSNameServer(this);
+        } finally {
+            setNetBIOSAddress(smbConfig, primary);
+        }
+    }
 
-        String broadcastAddress = getBroadcastAddress(bindAddress);
-        smbConfig.setBroadcastMask(broadcastAddress);
-        NetworkSettings.setBroadcastMask(broadcastAddress);
+    private static void setNetBIOSAddress(SMBConfigSection smbConfig, InetAddress address)
+            throws InvalidConfigurationException {
+        smbConfig.setNetBIOSBindAddress(address);
+        smbConfig.setBroadcastMask(getBroadcastAddress(address));
     }
 
     private static String getBroadcastAddress(InetAddress address) {
@@ -175,11 +271,12 @@ public class JLANFileServerConfiguration extends ServerConfiguration {
                 .orElse(null);
     }
 
-    private static void addShare(DiskInterface diskInterface,
-                                 ServerConfiguration serverConfig,
-                                 FilesystemsConfigSection filesysConfig,
-                                 SecurityConfigSection secConfig,
-                                 String shareName, String sharePath, @Nullable String trashcanPath)
+    private static DiskDeviceContext addShare(DiskInterface diskInterface,
+                                              ServerConfiguration serverConfig,
+                                              FilesystemsConfigSection filesysConfig,
+                                              SecurityConfigSection secConfig,
+                                              String shareName, String sharePath,
+                                              @Nullable String trashcanPath)
             throws DeviceContextException {
         final GenericConfigElement driverConfig = new GenericConfigElement("driver");
         final GenericConfigElement localPathConfig = new GenericConfigElement("LocalPath");
@@ -191,6 +288,31 @@ public class JLANFileServerConfiguration extends ServerConfiguration {
             trashcanPathConfig.setValue(trashcanPath);
             driverConfig.addChild(trashcanPathConfig);
         }
+        addConfigValue(driverConfig, SimbaDiskDeviceContext.CfgReadAheadMaxWindow,
+                DefaultReadAheadMaxWindow);
+        addConfigValue(driverConfig, SimbaDiskDeviceContext.CfgReadAheadWindows,
+                DefaultReadAheadWindows);
+        addConfigValue(driverConfig, SimbaDiskDeviceContext.CfgReadAheadMaxBuffers,
+                DefaultReadAheadMaxBuffers);
+        if (DefaultDirectRead) {
+            driverConfig.addChild(new GenericConfigElement(SimbaDiskDeviceContext.CfgDirectRead));
+        }
+        addConfigValue(driverConfig, SimbaDiskDeviceContext.CfgWriteBehindChunk,
+                DefaultWriteBehindChunk);
+        addConfigValue(driverConfig, SimbaDiskDeviceContext.CfgWriteBehindDelay,
+                DefaultWriteBehindDelay);
+        if (DefaultWriteBehindStrict) {
+            driverConfig.addChild(
+                    new GenericConfigElement(SimbaDiskDeviceContext.CfgWriteBehindStrict));
+        }
+        addConfigValue(driverConfig, SimbaDiskDeviceContext.CfgDirCacheMaxDirs,
+                DefaultDirCacheMaxDirs);
+        addConfigValue(driverConfig, SimbaDiskDeviceContext.CfgFileInfoCacheSize,
+                DefaultFileInfoCacheSize);
+        addConfigValue(driverConfig, SimbaDiskDeviceContext.CfgFileInfoCacheTtl,
+                DefaultFileInfoCacheTtl);
+        addConfigValue(driverConfig, SimbaDiskDeviceContext.CfgJunkFilePatterns,
+                DefaultJunkFilePatterns);
         DiskDeviceContext diskDeviceContext =
                 (DiskDeviceContext) diskInterface.createContext(shareName, driverConfig);
         diskDeviceContext.setShareName(shareName);
@@ -201,6 +323,46 @@ public class JLANFileServerConfiguration extends ServerConfiguration {
         diskDev.setAccessControlList(secConfig.getGlobalAccessControls());
         diskDeviceContext.startFilesystem(diskDev);
         filesysConfig.addShare(diskDev);
+        return diskDeviceContext;
+    }
+
+    private static void addConfigValue(GenericConfigElement parent, String name, Object value) {
+        final GenericConfigElement element = new GenericConfigElement(name);
+        element.setValue(String.valueOf(value));
+        parent.addChild(element);
+    }
+
+    /**
+     * @return The adaptive worker pool, or <code>null</code> if the pool has a fixed size.
+     */
+    @Nullable
+    AdaptiveWorkerPool getWorkerPool() {
+        return mWorkerPool;
+    }
+
+    /**
+     * @return The tuner that sized the packet buffer pool and collects its statistics.
+     */
+    MemoryPoolTuner getMemoryPoolTuner() {
+        return mMemoryPoolTuner;
+    }
+
+    /**
+     * @return The live I/O statistics of all shares.
+     */
+    IoMetrics getIoMetrics() {
+        return mIoMetrics;
+    }
+
+    /**
+     * @return <code>true</code> if the SMB server can move to a different address while running.
+     */
+    boolean supportsHotRebind() {
+        return mHotRebind;
+    }
+
+    LocalAddressFilter getLocalAddressFilter() {
+        return mLocalAddressFilter;
     }
 
     void removeTrashcanFolders() {
@@ -0,0 +1,73 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package de.buttercookie.simbadroid.jlan;
+
+import org.filesys.util.WildCard;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Answers lookups for metadata files that clients probe for in every folder (<code>desktop.ini
+ * </code>, <code>.DS_Store</code>, <code>._*</code> and so on) without going to disk.
+ * <p>
+ * A lookup is only short-circuited if the name matches one of the configured patterns and the
+ * cached listing of its directory proves that the file doesn't exist. Everything else is passed
+ * through unchanged.
+ */
+class JunkFileFilter {
+    private final List<WildCard> mPatterns = new ArrayList<>();
+    private final DirectoryCache mDirectoryCache;
+    private final AtomicLong mShortCircuited = new AtomicLong();
+
+    /**
+     * @param patterns Comma-separated list of file name patterns, matched ignoring case.
+     */
+    JunkFileFilter(String patterns, DirectoryCache directoryCache) {
+        for (String pattern : patterns.split(",")) {
+            pattern = pattern.trim();
+            if (!pattern.isEmpty()) {
+                mPatterns.add(new WildCard(pattern, false));
+            }
+        }
+        mDirectoryCache = directoryCache;
+    }
+
+    /**
+     * @return <code>true</code> if the file is known not to exist.
+     */
+    boolean isKnownAbsent(String localPath) {
+        if (mPatterns.isEmpty()) {
+            return false;
+        }
+
+        File file = new File(localPath);
+        String name = file.getName();
+        String parent = file.getParent();
+        if (parent == null || !matches(name) || mDirectoryCache.mightContain(parent, name)) {
+            return false;
+        }
+        mShortCircuited.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * @return The number of lookups answered without accessing the file system.
+     */
+    long getShortCircuitCount() {
+        return mShortCircuited.get();
+    }
+
+    private boolean matches(String name) {
+        for (WildCard pattern : mPatterns) {
+            if (pattern.matchesPattern(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,119 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package de.buttercookie.simbadroid.jlan;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import org.filesys.server.SessionListener;
+import org.filesys.server.SrvSession;
+import org.filesys.smb.server.PacketHandler;
+import org.filesys.smb.server.SMBServer;
+import org.filesys.smb.server.SMBSrvSession;
+import org.filesys.smb.server.nio.ChannelPacketHandler;
+
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.Set;
+
+/**
+ * Restricts the SMB server to clients connecting through a given set of local addresses.
+ * <p>
+ * So that the server can move to different addresses without dropping its sessions, the SMB
+ * listeners are bound to the wildcard address, and new sessions arriving through any other than
+ * the current addresses are hung up right away. Existing sessions are only closed once their local
+ * address has disappeared from the device, since their connection can't survive that anyway.
+ * <p>
+ * The port still accepts TCP connections on all interfaces, e.g. mobile data or a VPN, but such
+ * clients only get to see the reply to their protocol negotiation before they are hung up, and
+ * they are refused if they try to log on before that has happened.
+ * <p>
+ * This only works with the NIO connection handler, which exposes the sessions' sockets.
+ */
+class LocalAddressFilter implements SessionListener {
+    private static final String LOGTAG = "LocalAddressFilter";
+
+    private volatile Set<InetAddress> mAddresses;
+
+    /**
+     * @param addresses The addresses to accept sessions on, or <code>null</code> to accept all.
+     */
+    void setAddresses(@Nullable Collection<InetAddress> addresses) {
+        mAddresses = addresses != null ? Set.copyOf(addresses) : null;
+    }
+
+    /**
+     * @return <code>false</code> if the session has arrived through an address we don't serve on.
+     */
+    boolean accepts(SrvSession sess) {
+        Set<InetAddress> allowed = mAddresses;
+        InetAddress local = getLocalAddress(sess);
+        return allowed == null || local == null || allowed.contains(local);
+    }
+
+    @Override
+    public void sessionCreated(SrvSession sess) {
+        if (!accepts(sess)) {
+            Log.d(LOGTAG, "Rejecting session from " + sess.getRemoteAddress() + " via " +
+                    getLocalAddress(sess));
+            hangup(sess);
+        }
+    }
+
+    @Override
+    public void sessionClosed(SrvSession sess) {}
+
+    @Override
+    public void sessionLoggedOn(SrvSession sess) {}
+
+    /**
+     * Close all sessions whose local address no longer exists on any interface.
+     */
+    void closeOrphanedSessions(SMBServer server) {
+        Enumeration<SrvSession> sessions = server.getSessions().enumerateSessions();
+        while (sessions.hasMoreElements()) {
+            SrvSession sess = sessions.nextElement();
+            InetAddress local = getLocalAddress(sess);
+            if (local != null && !isAddressPresent(local)) {
+                Log.d(LOGTAG, "Closing session from " + sess.getRemoteAddress() + ", " + local +
+                        " is gone");
+                hangup(sess);
+            }
+        }
+    }
+
+    @Nullable
+    private static InetAddress getLocalAddress(SrvSession sess) {
+        if (sess instanceof SMBSrvSession smbSess &&
+                smbSess.getPacketHandler() instanceof ChannelPacketHandler handler) {
+            return handler.getSocketChannel().socket().getLocalAddress();
+        }
+        return null;
+    }
+
+    private static boolean isAddressPresent(InetAddress address) {
+        try {
+            return NetworkInterface.getByInetAddress(address) != null;
+        } catch (SocketException e) {
+            // Err on the side of keeping the session.
+            return true;
+        }
+    }
+
+    /**
+     * Close the session's connection. The connection handler then cleans up the session as if
+     * the client had disconnected.
+     */
+    private static void hangup(SrvSession sess) {
+        PacketHandler handler = ((SMBSrvSession) sess).getPacketHandler();
+        if (handler != null) {
+            handler.closeHandler();
+        }
+    }
+}
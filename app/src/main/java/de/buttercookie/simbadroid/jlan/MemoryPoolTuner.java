@@ -0,0 +1,206 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package de.buttercookie.simbadroid.jlan;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import org.filesys.server.memory.ByteBufferList;
+import org.filesys.server.memory.ByteBufferPool;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Sizes the tiers of the SMB packet buffer pool and keeps statistics about their use.
+ * <p>
+ * JFileServer's buffer pool can't be resized once it has been created, so in auto-tune mode the
+ * peak usage and allocation waits of each tier as well as a histogram of the read and write sizes
+ * are recorded while the server is running and persisted when it stops. The next time the server
+ * is configured, the tier counts are derived from that history, and a tier for large requests is
+ * added if large requests have been seen.
+ */
+class MemoryPoolTuner {
+    private static final String LOGTAG = "MemoryPoolTuner";
+
+    private static final String PREF_KEY_PEAK = "peak_";
+    private static final String PREF_KEY_WAITS = "waits_";
+    private static final String PREF_KEY_LARGE_REQUESTS = "large_requests";
+
+    // Buffer size of the optional tier for multi-megabyte reads and writes, including room for
+    // the SMB headers.
+    static final int LARGE_TIER_BUF_SIZE = 1024 * 1024 + 1024;
+    private static final int LARGE_TIER_MAX_ALLOC = 4;
+    // Upper limit for the memory a single tier may grow to through auto-tuning.
+    private static final long MAX_TIER_BYTES = 32 * 1024 * 1024;
+    // Approximate size of the SMB headers surrounding the data of a read or write.
+    private static final int REQUEST_OVERHEAD = 128;
+
+    record Tier(int bufSize, int initAlloc, int maxAlloc) {}
+
+    /**
+     * @param hits Allocations that were served without waiting.
+     * @param waits Allocations that had to wait for a buffer to be released.
+     * @param waitsExpired Waits that timed out without getting a buffer.
+     * @param requests Reads and writes whose packets fall into this tier.
+     */
+    record TierStats(int bufSize, int maxAlloc, int inUse, int peakInUse, int available,
+                     long hits, long waits, long waitsExpired, long requests) {}
+
+    private final SharedPreferences mPrefs;
+    private final boolean mAutoTune;
+    private final List<Tier> mTiers;
+
+    private ByteBufferList[] mLists;
+    private AtomicIntegerArray mPeakInUse;
+    // One bucket per tier, plus one for requests larger than the largest tier.
+    private AtomicLongArray mRequestSizes;
+
+    /**
+     * @param prefs Where the usage history for auto-tuning is kept.
+     * @param defaults The tiers to use without any usage history.
+     * @param autoTune Whether to adjust the tiers based on the usage history.
+     * @param largeTier Whether to always add a tier for large reads and writes.
+     */
+    MemoryPoolTuner(SharedPreferences prefs, List<Tier> defaults, boolean autoTune,
+                    boolean largeTier) {
+        mPrefs = prefs;
+        mAutoTune = autoTune;
+
+        List<Tier> tiers = new ArrayList<>();
+        for (Tier tier : defaults) {
+            tiers.add(autoTune ? tune(tier) : tier);
+        }
+        int largest = tiers.get(tiers.size() - 1).bufSize();
+        if (largest < LARGE_TIER_BUF_SIZE && (largeTier ||
+                (autoTune && mPrefs.getLong(PREF_KEY_LARGE_REQUESTS, 0) > 0))) {
+            tiers.add(new Tier(LARGE_TIER_BUF_SIZE, 0, LARGE_TIER_MAX_ALLOC));
+        }
+        mTiers = Collections.unmodifiableList(tiers);
+    }
+
+    List<Tier> getTiers() {
+        return mTiers;
+    }
+
+    int[] getBufferSizes() {
+        return mTiers.stream().mapToInt(Tier::bufSize).toArray();
+    }
+
+    int[] getInitialAllocations() {
+        return mTiers.stream().mapToInt(Tier::initAlloc).toArray();
+    }
+
+    int[] getMaximumAllocations() {
+        return mTiers.stream().mapToInt(Tier::maxAlloc).toArray();
+    }
+
+    /**
+     * Start collecting statistics for the pool created from {@link #getTiers()}.
+     */
+    void attach(ByteBufferPool pool) {
+        mLists = pool.getBufferList();
+        mPeakInUse = new AtomicIntegerArray(mLists.length);
+        mRequestSizes = new AtomicLongArray(mLists.length + 1);
+    }
+
+    /**
+     * Record the size of the data of a read or write request.
+     */
+    void recordRequestSize(int size) {
+        ByteBufferList[] lists = mLists;
+        if (lists == null) {
+            return;
+        }
+        int packetSize = size + REQUEST_OVERHEAD;
+        int tier = 0;
+        while (tier < lists.length && lists[tier].getBufferSize() < packetSize) {
+            tier++;
+        }
+        mRequestSizes.incrementAndGet(tier);
+        updatePeaks();
+    }
+
+    List<TierStats> getStats() {
+        ByteBufferList[] lists = mLists;
+        if (lists == null) {
+            return Collections.emptyList();
+        }
+        updatePeaks();
+        List<TierStats> stats = new ArrayList<>(lists.length);
+        for (int i = 0; i < lists.length; i++) {
+            ByteBufferList list = lists[i];
+            stats.add(new TierStats(list.getBufferSize(), list.getMaximumAllocation(),
+                    list.getAllocatedCount(), mPeakInUse.get(i), list.getAvailableCount(),
+                    list.getStatAllocationCounter(), list.getStatAllocationWaits(),
+                    list.getStatAllocationWaitsExpired(), mRequestSizes.get(i)));
+        }
+        return stats;
+    }
+
+    /**
+     * @return The number of reads and writes too large for any tier.
+     */
+    long getOversizedRequests() {
+        return mRequestSizes != null ? mRequestSizes.get(mRequestSizes.length() - 1) : 0;
+    }
+
+    /**
+     * Persist the usage history for the next time the server is configured.
+     */
+    void save() {
+        List<TierStats> stats = getStats();
+        for (TierStats tier : stats) {
+            Log.d(LOGTAG, tier.toString());
+        }
+        if (!mAutoTune || stats.isEmpty()) {
+            return;
+        }
+
+        SharedPreferences.Editor editor = mPrefs.edit();
+        for (TierStats tier : stats) {
+            // Let old peaks decay slowly, so that a single quiet session doesn't undo the tuning.
+            int oldPeak = mPrefs.getInt(PREF_KEY_PEAK + tier.bufSize(), 0);
+            editor.putInt(PREF_KEY_PEAK + tier.bufSize(),
+                    Math.max(tier.peakInUse(), oldPeak * 3 / 4));
+            editor.putLong(PREF_KEY_WAITS + tier.bufSize(), tier.waits());
+        }
+        long largeRequests = getOversizedRequests();
+        int largest = stats.get(stats.size() - 1).bufSize();
+        if (largest >= LARGE_TIER_BUF_SIZE) {
+            largeRequests += stats.get(stats.size() - 1).requests();
+        }
+        editor.putLong(PREF_KEY_LARGE_REQUESTS, largeRequests);
+        editor.apply();
+    }
+
+    private Tier tune(Tier tier) {
+        int peak = mPrefs.getInt(PREF_KEY_PEAK + tier.bufSize(), 0);
+        if (peak == 0) {
+            return tier;
+        }
+        long waits = mPrefs.getLong(PREF_KEY_WAITS + tier.bufSize(), 0);
+
+        // Leave some headroom above the observed peak, and more if requests had to wait.
+        int wanted = waits > 0 ? peak * 2 : peak + (peak + 3) / 4;
+        int limit = (int) Math.max(MAX_TIER_BYTES / tier.bufSize(), tier.maxAlloc());
+        int maxAlloc = Math.min(Math.max(wanted, tier.maxAlloc()), limit);
+        int initAlloc = Math.min(Math.max((peak + 1) / 2, 1), maxAlloc);
+        return new Tier(tier.bufSize(), initAlloc, maxAlloc);
+    }
+
+    private void updatePeaks() {
+        ByteBufferList[] lists = mLists;
+        for (int i = 0; i < lists.length; i++) {
+            int inUse = lists[i].getAllocatedCount();
+            if (inUse > mPeakInUse.get(i)) {
+                mPeakInUse.accumulateAndGet(i, inUse, Math::max);
+            }
+        }
+    }
+}
@@ -0,0 +1,440 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package de.buttercookie.simbadroid.jlan;
+
+import android.util.Log;
+
+import org.filesys.server.filesys.NetworkFile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Asynchronous sequential read-ahead for files served from a single share.
+ * <p>
+ * Each open file gets its own {@link Stream} that watches the offsets of incoming reads. Once a
+ * file is being read sequentially, the next few windows are prefetched into pooled direct
+ * buffers on a background thread, so that subsequent reads can be served from memory. The window
+ * size starts out small and doubles every time a window has been consumed completely, up to the
+ * configured maximum.
+ * <p>
+ * With direct reads enabled, reads that can't be served from prefetched data are passed to the
+ * file system as a single positional read on the stream's own channel, which saves the separate
+ * seek that {@link org.filesys.smb.server.disk.JavaNIONetworkFile} does for every request.
+ */
+class ReadAheadCache {
+    private static final String LOGTAG = "ReadAheadCache";
+
+    /** Number of consecutive sequential reads before we start prefetching. */
+    private static final int SEQUENTIAL_THRESHOLD = 2;
+    private static final int INITIAL_WINDOW_SIZE = 64 * 1024;
+    private static final long IDLE_THREAD_TIMEOUT_S = 30;
+
+    private final int mMaxWindowSize;
+    private final int mWindowCount;
+    private final int mMaxBuffers;
+    private final boolean mDirectReads;
+
+    private final ConcurrentLinkedQueue<ByteBuffer> mBufferPool = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger mAllocatedBuffers = new AtomicInteger();
+    private final Map<NetworkFile, Stream> mStreams = new ConcurrentHashMap<>();
+    private final ThreadPoolExecutor mExecutor;
+
+    /**
+     * @param maxWindowSize The maximum size of a single prefetch window in bytes.
+     * @param windowCount How many windows to keep prefetched ahead of the current read position.
+     * @param maxBuffers The maximum number of window buffers shared by all open files.
+     * @param directReads Whether to serve reads missing the prefetched data, too.
+     */
+    ReadAheadCache(int maxWindowSize, int windowCount, int maxBuffers, boolean directReads) {
+        mMaxWindowSize = Math.max(maxWindowSize, INITIAL_WINDOW_SIZE);
+        mWindowCount = Math.max(windowCount, 0);
+        mMaxBuffers = Math.max(maxBuffers, mWindowCount);
+        mDirectReads = directReads;
+
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+        mExecutor = new ThreadPoolExecutor(threads, threads,
+                IDLE_THREAD_TIMEOUT_S, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+                    Thread thread = new Thread(r, "ReadAhead");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Start tracking reads for a newly opened file.
+     *
+     * @param file The file as returned by the disk driver.
+     * @param localPath The absolute path of the file on the local file system.
+     */
+    void attach(NetworkFile file, String localPath) {
+        mStreams.put(file, new Stream(localPath));
+    }
+
+    /**
+     * Stop tracking a file and release all buffers held on its behalf.
+     */
+    void detach(NetworkFile file) {
+        Stream stream = mStreams.remove(file);
+        if (stream != null) {
+            stream.close();
+        }
+    }
+
+    /**
+     * Try to serve a read from the prefetched data.
+     *
+     * @return The number of bytes copied into <code>buf</code>, or <code>-1</code> if the read
+     *         couldn't be served from the cache and must be passed through to the file.
+     */
+    int read(NetworkFile file, byte[] buf, int bufPos, int len, long filePos) {
+        Stream stream = mStreams.get(file);
+        return stream != null ? stream.read(buf, bufPos, len, filePos) : -1;
+    }
+
+    /**
+     * Drop any prefetched data for the given path, e.g. because the file has been written to.
+     */
+    void invalidate(String localPath) {
+        for (Stream stream : mStreams.values()) {
+            if (stream.mLocalPath.equals(localPath)) {
+                stream.reset();
+            }
+        }
+    }
+
+    void shutdown() {
+        for (NetworkFile file : mStreams.keySet()) {
+            detach(file);
+        }
+        for (Runnable task : mExecutor.shutdownNow()) {
+            // Windows that never got to run would otherwise leave readers waiting forever.
+            ((Window) task).abort();
+        }
+        mBufferPool.clear();
+    }
+
+    /**
+     * @return A buffer of at least the given size, or <code>null</code> if all buffers are in use.
+     */
+    private ByteBuffer obtainBuffer(int size) {
+        ByteBuffer buffer = mBufferPool.poll();
+        if (buffer != null && buffer.capacity() < size) {
+            // Buffers are only as large as the window they were allocated for, so this one is too
+            // small now that the window has grown. Let it go and allocate a larger one.
+            mAllocatedBuffers.decrementAndGet();
+            buffer = null;
+        }
+        if (buffer == null) {
+            if (mAllocatedBuffers.incrementAndGet() <= mMaxBuffers) {
+                buffer = ByteBuffer.allocateDirect(size);
+            } else {
+                mAllocatedBuffers.decrementAndGet();
+            }
+        }
+        return buffer;
+    }
+
+    private void recycleBuffer(ByteBuffer buffer) {
+        buffer.clear();
+        mBufferPool.offer(buffer);
+    }
+
+    /**
+     * A single prefetched region of a file.
+     */
+    private final class Window implements Runnable {
+        private final FileChannel mChannel;
+        private final long mOffset;
+        private final int mSize;
+        private final ByteBuffer mBuffer;
+
+        // Guarded by 'this'.
+        private boolean mLoaded;
+        private boolean mReleased;
+        private int mLength;
+
+        Window(FileChannel channel, long offset, int size, ByteBuffer buffer) {
+            mChannel = channel;
+            mOffset = offset;
+            mSize = size;
+            mBuffer = buffer;
+        }
+
+        @Override
+        public void run() {
+            int length = 0;
+            try {
+                ByteBuffer target = mBuffer.duplicate();
+                target.limit(mSize);
+                while (target.hasRemaining()) {
+                    int read = mChannel.read(target, mOffset + target.position());
+                    if (read < 0) {
+                        break;
+                    }
+                }
+                length = target.position();
+            } catch (IOException e) {
+                Log.d(LOGTAG, "Prefetch failed", e);
+            }
+
+            synchronized (this) {
+                mLength = length;
+                mLoaded = true;
+                notifyAll();
+                if (mReleased) {
+                    recycleBuffer(mBuffer);
+                }
+            }
+        }
+
+        /**
+         * Give up on a window that won't be loaded, so that readers waiting for it don't hang.
+         */
+        synchronized void abort() {
+            mLength = 0;
+            mLoaded = true;
+            notifyAll();
+            if (mReleased) {
+                recycleBuffer(mBuffer);
+            }
+        }
+
+        long end() {
+            return mOffset + mSize;
+        }
+
+        boolean contains(long pos) {
+            return pos >= mOffset && pos < end();
+        }
+
+        /**
+         * Copy data out of this window, waiting for the prefetch to finish if necessary.
+         *
+         * @return The number of bytes copied, or <code>-1</code> if the requested data isn't
+         *         available.
+         */
+        synchronized int copyTo(byte[] buf, int bufPos, int len, long filePos)
+                throws InterruptedException {
+            while (!mLoaded) {
+                wait();
+            }
+            int start = (int) (filePos - mOffset);
+            if (start >= mLength) {
+                return -1;
+            }
+            int count = Math.min(len, mLength - start);
+            ByteBuffer source = mBuffer.duplicate();
+            source.position(start);
+            source.get(buf, bufPos, count);
+            return count;
+        }
+
+        synchronized boolean isShort() {
+            return mLoaded && mLength < mSize;
+        }
+
+        synchronized void release() {
+            mReleased = true;
+            if (mLoaded) {
+                recycleBuffer(mBuffer);
+            }
+        }
+    }
+
+    /**
+     * Read-ahead state for one open file.
+     */
+    private final class Stream {
+        private final String mLocalPath;
+        private final ArrayDeque<Window> mWindows = new ArrayDeque<>();
+
+        // Guarded by 'this'.
+        private FileChannel mChannel;
+        private long mNextExpectedPos = -1;
+        private int mSequentialReads;
+        private int mWindowSize = INITIAL_WINDOW_SIZE;
+        private boolean mClosed;
+
+        Stream(String localPath) {
+            mLocalPath = localPath;
+        }
+
+        synchronized int read(byte[] buf, int bufPos, int len, long filePos) {
+            if (mClosed) {
+                return -1;
+            }
+
+            if (filePos != mNextExpectedPos) {
+                resetLocked();
+            }
+            mNextExpectedPos = filePos + len;
+
+            try {
+                int copied = 0;
+                boolean endOfFile = false;
+                if (++mSequentialReads >= SEQUENTIAL_THRESHOLD && mWindowCount > 0) {
+                    dropWindowsBefore(filePos);
+                    scheduleWindows(filePos);
+
+                    for (Window window : mWindows) {
+                        if (copied == len) {
+                            break;
+                        }
+                        long pos = filePos + copied;
+                        if (!window.contains(pos)) {
+                            continue;
+                        }
+                        int count = window.copyTo(buf, bufPos + copied, len - copied, pos);
+                        if (count < 0) {
+                            break;
+                        }
+                        copied += count;
+                        if (window.isShort()) {
+                            endOfFile = true;
+                            break;
+                        }
+                    }
+                }
+
+                if (copied < len && !endOfFile && (copied > 0 || mDirectReads)) {
+                    // Never return a short read unless we've hit the end of the file - clients
+                    // treat that as EOF.
+                    int count = readFromChannel(buf, bufPos + copied, len - copied,
+                            filePos + copied);
+                    if (count > 0) {
+                        copied += count;
+                    }
+                }
+                if (copied == 0) {
+                    return -1;
+                }
+                mNextExpectedPos = filePos + copied;
+
+                if (!mWindows.isEmpty()) {
+                    dropWindowsBefore(mNextExpectedPos);
+                    scheduleWindows(mNextExpectedPos);
+                }
+                return copied;
+            } catch (IOException e) {
+                Log.d(LOGTAG, "Read-ahead disabled for " + mLocalPath, e);
+                closeLocked();
+                return -1;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return -1;
+            }
+        }
+
+        private int readFromChannel(byte[] buf, int bufPos, int len, long filePos)
+                throws IOException {
+            ensureChannel();
+            ByteBuffer target = ByteBuffer.wrap(buf, bufPos, len);
+            while (target.hasRemaining()) {
+                if (mChannel.read(target, filePos + target.position() - bufPos) < 0) {
+                    break;
+                }
+            }
+            return target.position() - bufPos;
+        }
+
+        private void ensureChannel() throws IOException {
+            if (mChannel == null) {
+                mChannel = FileChannel.open(Paths.get(mLocalPath), StandardOpenOption.READ);
+            }
+        }
+
+        synchronized void reset() {
+            resetLocked();
+        }
+
+        synchronized void close() {
+            closeLocked();
+        }
+
+        private void resetLocked() {
+            releaseWindows();
+            mSequentialReads = 0;
+            mWindowSize = INITIAL_WINDOW_SIZE;
+        }
+
+        private void closeLocked() {
+            mClosed = true;
+            releaseWindows();
+            if (mChannel != null) {
+                try {
+                    mChannel.close();
+                } catch (IOException ignored) {}
+                mChannel = null;
+            }
+        }
+
+        private void releaseWindows() {
+            Window window;
+            while ((window = mWindows.poll()) != null) {
+                window.release();
+            }
+        }
+
+        private void dropWindowsBefore(long pos) {
+            Window window;
+            while ((window = mWindows.peek()) != null && window.end() <= pos) {
+                mWindows.poll();
+                window.release();
+                // The client has consumed a whole window, so it's worth reading further ahead.
+                mWindowSize = Math.min(mWindowSize * 2, mMaxWindowSize);
+            }
+            if (window != null && !window.contains(pos)) {
+                // Our windows are ahead of the client, which shouldn't happen with strictly
+                // sequential reads - start over.
+                releaseWindows();
+            }
+        }
+
+        private void scheduleWindows(long pos) throws IOException {
+            ensureChannel();
+
+            Window last = mWindows.peekLast();
+            if (last != null && last.isShort()) {
+                // Nothing left to prefetch
+                return;
+            }
+            long nextOffset = last != null ? last.end() : pos;
+            long fileSize = mChannel.size();
+            while (mWindows.size() < mWindowCount && nextOffset < fileSize) {
+                ByteBuffer buffer = obtainBuffer(mWindowSize);
+                if (buffer == null) {
+                    // Buffer pool exhausted - the client will simply have to wait for the disk.
+                    break;
+                }
+                Window window = new Window(mChannel, nextOffset, mWindowSize, buffer);
+                try {
+                    mExecutor.execute(window);
+                } catch (RejectedExecutionException e) {
+                    // We're shutting down.
+                    window.abort();
+                    window.release();
+                    break;
+                }
+                mWindows.add(window);
+                nextOffset = window.end();
+            }
+        }
+    }
+}
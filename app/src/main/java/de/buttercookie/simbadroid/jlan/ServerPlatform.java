@@ -0,0 +1,33 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package de.buttercookie.simbadroid.jlan;
+
+import android.content.SharedPreferences;
+
+import androidx.annotation.Nullable;
+
+import java.util.List;
+
+/**
+ * Everything the server configuration needs to know about the system it is running on.
+ */
+interface ServerPlatform {
+    record Share(String name, String path, @Nullable String trashcanPath) {}
+
+    List<Share> getShares();
+
+    /**
+     * @return Where the packet buffer pool usage is kept between runs.
+     */
+    SharedPreferences getMemoryPoolPreferences();
+
+    VolumeInfo getVolumeInfo();
+
+    /**
+     * @return Whether the network code needs to avoid the parts of the Java library that core
+     * library desugaring doesn't provide.
+     */
+    boolean needsDesugaringWorkarounds();
+}
@@ -4,37 +4,194 @@
 
 package de.buttercookie.simbadroid.jlan;
 
-import android.system.ErrnoException;
-import android.system.Os;
-import android.system.StructStat;
 import android.util.Log;
 
+import androidx.annotation.Nullable;
+
 import org.filesys.server.core.DeviceContextException;
 import org.filesys.smb.server.disk.JavaNIODeviceContext;
 import org.springframework.extensions.config.ConfigElement;
 
 import java.io.File;
+import java.io.IOException;
 
 public class SimbaDiskDeviceContext extends JavaNIODeviceContext {
     private static final String LOGTAG = "SimbaDiskDeviceContext";
 
+    private static final int DEFAULT_WRITE_BEHIND_DELAY_MS = 500;
+    private static final int DEFAULT_FILE_INFO_CACHE_TTL_MS = 2000;
+
+    static final String CfgReadAheadMaxWindow = "ReadAheadMaxWindow";
+    static final String CfgReadAheadWindows = "ReadAheadWindows";
+    static final String CfgReadAheadMaxBuffers = "ReadAheadMaxBuffers";
+    static final String CfgDirectRead = "DirectRead";
+    static final String CfgWriteBehindChunk = "WriteBehindChunk";
+    static final String CfgWriteBehindDelay = "WriteBehindDelay";
+    static final String CfgWriteBehindStrict = "WriteBehindStrict";
+    static final String CfgDirCacheMaxDirs = "DirCacheMaxDirs";
+    static final String CfgFileInfoCacheSize = "FileInfoCacheSize";
+    static final String CfgFileInfoCacheTtl = "FileInfoCacheTtl";
+    static final String CfgJunkFilePatterns = "JunkFilePatterns";
+
+    private final ReadAheadCache mReadAheadCache;
+    private final WriteBehindBuffer mWriteBehindBuffer;
+    private final DirectoryCache mDirectoryCache;
+    private final FileInfoCache mFileInfoCache;
+    private final JunkFileFilter mJunkFileFilter;
+
     public SimbaDiskDeviceContext(String name, ConfigElement args) throws DeviceContextException {
         super(name, args);
+
+        int readAheadWindows = getIntParameter(args, CfgReadAheadWindows, 0);
+        boolean directRead = args.getChild(CfgDirectRead) != null;
+        if (readAheadWindows > 0 || directRead) {
+            mReadAheadCache = new ReadAheadCache(
+                    getIntParameter(args, CfgReadAheadMaxWindow, 0),
+                    readAheadWindows,
+                    getIntParameter(args, CfgReadAheadMaxBuffers, 0),
+                    directRead);
+        } else {
+            mReadAheadCache = null;
+        }
+
+        int writeBehindChunk = getIntParameter(args, CfgWriteBehindChunk, 0);
+        if (writeBehindChunk > 0 && args.getChild(CfgWriteBehindStrict) == null) {
+            mWriteBehindBuffer = new WriteBehindBuffer(writeBehindChunk,
+                    getIntParameter(args, CfgWriteBehindDelay, DEFAULT_WRITE_BEHIND_DELAY_MS),
+                    this::onDataWritten);
+        } else {
+            mWriteBehindBuffer = null;
+        }
+
+        int dirCacheMaxDirs = getIntParameter(args, CfgDirCacheMaxDirs, 0);
+        mDirectoryCache = dirCacheMaxDirs > 0 ? new DirectoryCache(dirCacheMaxDirs) : null;
+
+        int fileInfoCacheSize = getIntParameter(args, CfgFileInfoCacheSize, 0);
+        mFileInfoCache = fileInfoCacheSize > 0 ? new FileInfoCache(fileInfoCacheSize,
+                getIntParameter(args, CfgFileInfoCacheTtl, DEFAULT_FILE_INFO_CACHE_TTL_MS)) : null;
+
+        ConfigElement junkFilePatterns = args.getChild(CfgJunkFilePatterns);
+        if (mDirectoryCache != null && junkFilePatterns != null &&
+                junkFilePatterns.getValue() != null) {
+            mJunkFileFilter = new JunkFileFilter(junkFilePatterns.getValue(), mDirectoryCache);
+        } else {
+            mJunkFileFilter = null;
+        }
     }
 
     @Override
     protected boolean isTrashcanOnSameVolume(File rootDir, File trashCan) {
         boolean result;
         try {
-            StructStat rootStat = Os.stat(rootDir.getAbsolutePath());
-            StructStat trashStat = Os.stat(trashCan.getAbsolutePath());
-            result = rootStat.st_dev == trashStat.st_dev;
-        } catch (ErrnoException e) {
+            VolumeInfo volumeInfo = SimbaDiskDriver.getVolumeInfo();
+            result = volumeInfo.getDeviceId(rootDir.getAbsolutePath()) ==
+                    volumeInfo.getDeviceId(trashCan.getAbsolutePath());
+        } catch (IOException e) {
             result = false;
         }
         return result;
     }
 
+    @Override
+    public void CloseContext() {
+        if (mJunkFileFilter != null) {
+            Log.d(LOGTAG, getShareName() + ": answered " +
+                    mJunkFileFilter.getShortCircuitCount() + " junk file lookups from cache");
+        }
+        if (mWriteBehindBuffer != null) {
+            mWriteBehindBuffer.shutdown();
+        }
+        if (mReadAheadCache != null) {
+            mReadAheadCache.shutdown();
+        }
+        if (mDirectoryCache != null) {
+            mDirectoryCache.clear();
+        }
+        if (mFileInfoCache != null) {
+            mFileInfoCache.clear();
+        }
+        super.CloseContext();
+    }
+
+    @Nullable
+    ReadAheadCache getReadAheadCache() {
+        return mReadAheadCache;
+    }
+
+    /**
+     * @return The write-behind buffer for this share, or <code>null</code> if writes should go
+     *         straight to disk.
+     */
+    @Nullable
+    WriteBehindBuffer getWriteBehindBuffer() {
+        return mWriteBehindBuffer;
+    }
+
+    /**
+     * @return The directory listing cache for this share, or <code>null</code> if directories
+     *         should always be listed from disk.
+     */
+    @Nullable
+    DirectoryCache getDirectoryCache() {
+        return mDirectoryCache;
+    }
+
+    /**
+     * @return The cache for file information and existence checks for this share, or
+     *         <code>null</code> if every lookup should go to disk.
+     */
+    @Nullable
+    FileInfoCache getFileInfoCache() {
+        return mFileInfoCache;
+    }
+
+    /**
+     * @return The filter for lookups of metadata files that clients keep probing for, or
+     *         <code>null</code> if it is disabled.
+     */
+    @Nullable
+    JunkFileFilter getJunkFileFilter() {
+        return mJunkFileFilter;
+    }
+
+    void onDataWritten(String localPath) {
+        if (mReadAheadCache != null) {
+            mReadAheadCache.invalidate(localPath);
+        }
+        onEntryChanged(localPath);
+    }
+
+    /**
+     * Called when a file or directory has been created, deleted, renamed or modified through the
+     * server, so that the listing of its parent directory gets refreshed.
+     */
+    void onEntryChanged(String localPath) {
+        if (mDirectoryCache != null) {
+            mDirectoryCache.invalidateParent(localPath);
+        }
+        if (mFileInfoCache != null) {
+            mFileInfoCache.invalidate(localPath);
+            String parent = new File(localPath).getParent();
+            if (parent != null) {
+                mFileInfoCache.invalidate(parent);
+            }
+        }
+    }
+
+    /**
+     * Like {@link #onEntryChanged(String)}, but also forgets everything cached for paths below
+     * the given one, e.g. because a directory has been renamed or deleted.
+     */
+    void onTreeChanged(String localPath) {
+        onEntryChanged(localPath);
+        if (mDirectoryCache != null) {
+            mDirectoryCache.invalidate(localPath);
+        }
+        if (mFileInfoCache != null) {
+            mFileInfoCache.invalidateTree(localPath);
+        }
+    }
+
     public void removeTrashcanFolderIfEmpty() {
         if (hasTrashFolder()) {
             if (!getTrashFolder().delete()) {
@@ -42,4 +199,17 @@ public class SimbaDiskDeviceContext extends JavaNIODeviceContext {
             }
         }
     }
+
+    private static int getIntParameter(ConfigElement args, String name, int defaultValue) {
+        ConfigElement element = args.getChild(name);
+        if (element == null || element.getValue() == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(element.getValue().trim());
+        } catch (NumberFormatException e) {
+            Log.w(LOGTAG, "Invalid value for " + name + ": " + element.getValue());
+            return defaultValue;
+        }
+    }
 }
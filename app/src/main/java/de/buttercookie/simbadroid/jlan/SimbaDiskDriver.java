@@ -4,28 +4,78 @@
 
 package de.buttercookie.simbadroid.jlan;
 
-import android.os.StatFs;
+import androidx.annotation.Nullable;
 
+import org.filesys.server.SrvSession;
 import org.filesys.server.core.DeviceContextException;
 import org.filesys.server.filesys.DiskDeviceContext;
 import org.filesys.server.filesys.DiskSizeInterface;
+import org.filesys.server.filesys.FileInfo;
+import org.filesys.server.filesys.FileName;
+import org.filesys.server.filesys.FileOpenParams;
+import org.filesys.server.filesys.FileStatus;
+import org.filesys.server.filesys.NetworkFile;
+import org.filesys.server.filesys.SearchContext;
+import org.filesys.server.filesys.SearchFlags;
 import org.filesys.server.filesys.SrvDiskInfo;
+import org.filesys.server.filesys.TreeConnection;
 import org.filesys.smb.server.disk.JavaNIODeviceContext;
 import org.filesys.smb.server.disk.JavaNIODiskDriver;
+import org.filesys.util.WildCard;
 import org.springframework.extensions.config.ConfigElement;
 
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.List;
+
 public class SimbaDiskDriver extends JavaNIODiskDriver implements DiskSizeInterface {
 
     private static final int BLOCK_SIZE = 512;
 
+    // The device context already needs this while its superclass constructor sets up the
+    // trashcan, so it can't be handed to the driver or the context instances.
+    private static volatile VolumeInfo sVolumeInfo;
+
+    private final MemoryPoolTuner mMemoryPoolTuner;
+
+    public SimbaDiskDriver() {
+        this(null);
+    }
+
+    /**
+     * @param memoryPoolTuner Receives the size of each read and write, if set.
+     */
+    SimbaDiskDriver(@Nullable MemoryPoolTuner memoryPoolTuner) {
+        mMemoryPoolTuner = memoryPoolTuner;
+    }
+
+    /**
+     * Set the implementation of the platform specific file system queries, which must happen
+     * before the first share is created.
+     */
+    static void setVolumeInfo(VolumeInfo volumeInfo) {
+        sVolumeInfo = volumeInfo;
+    }
+
+    static VolumeInfo getVolumeInfo() {
+        VolumeInfo volumeInfo = sVolumeInfo;
+        if (volumeInfo == null) {
+            throw new IllegalStateException("VolumeInfo hasn't been set");
+        }
+        return volumeInfo;
+    }
+
     @Override
-    public void getDiskInformation(DiskDeviceContext ctx, SrvDiskInfo diskDev) {
-        StatFs statFs = new StatFs(ctx.getDeviceName());
+    public void getDiskInformation(DiskDeviceContext ctx, SrvDiskInfo diskDev)
+            throws IOException {
+        VolumeInfo.Usage usage = getVolumeInfo().getUsage(ctx.getDeviceName());
 
         diskDev.setBlockSize(BLOCK_SIZE);
-        diskDev.setBlocksPerAllocationUnit(statFs.getBlockSizeLong() / BLOCK_SIZE);
-        diskDev.setTotalUnits(statFs.getBlockCountLong());
-        diskDev.setFreeUnits(statFs.getAvailableBlocksLong());
+        diskDev.setBlocksPerAllocationUnit(usage.blockSize() / BLOCK_SIZE);
+        diskDev.setTotalUnits(usage.totalBlocks());
+        diskDev.setFreeUnits(usage.availableBlocks());
     }
 
     @Override
@@ -33,4 +83,304 @@ public class SimbaDiskDriver extends JavaNIODiskDriver implements DiskSizeInterf
             throws DeviceContextException {
         return new SimbaDiskDeviceContext(shareName, args);
     }
+
+    @Override
+    public NetworkFile openFile(SrvSession sess, TreeConnection tree, FileOpenParams params)
+            throws IOException {
+        if (isKnownAbsent(tree, params.getPath())) {
+            throw new FileNotFoundException(params.getPath());
+        }
+        NetworkFile file = super.openFile(sess, tree, params);
+        attachFile(tree, params, file);
+        return file;
+    }
+
+    @Override
+    public NetworkFile createFile(SrvSession sess, TreeConnection tree, FileOpenParams params)
+            throws IOException {
+        NetworkFile file = super.createFile(sess, tree, params);
+        onEntryChanged(tree, params.getPath());
+        attachFile(tree, params, file);
+        return file;
+    }
+
+    @Override
+    public void createDirectory(SrvSession sess, TreeConnection tree, FileOpenParams params)
+            throws IOException {
+        super.createDirectory(sess, tree, params);
+        onEntryChanged(tree, params.getPath());
+    }
+
+    @Override
+    public void deleteDirectory(SrvSession sess, TreeConnection tree, String dir)
+            throws IOException {
+        super.deleteDirectory(sess, tree, dir);
+        onTreeChanged(tree, dir);
+    }
+
+    @Override
+    public void closeFile(SrvSession sess, TreeConnection tree, NetworkFile file)
+            throws IOException {
+        SimbaDiskDeviceContext ctx = getSimbaContext(tree);
+        try {
+            if (ctx != null) {
+                if (ctx.getReadAheadCache() != null) {
+                    ctx.getReadAheadCache().detach(file);
+                }
+                if (ctx.getWriteBehindBuffer() != null) {
+                    ctx.getWriteBehindBuffer().detach(file);
+                }
+            }
+        } finally {
+            super.closeFile(sess, tree, file);
+        }
+    }
+
+    @Override
+    public void flushFile(SrvSession sess, TreeConnection tree, NetworkFile file)
+            throws IOException {
+        WriteBehindBuffer writeBehind = getWriteBehindBuffer(tree);
+        if (writeBehind != null) {
+            writeBehind.flush(file);
+        }
+        super.flushFile(sess, tree, file);
+    }
+
+    @Override
+    public int readFile(SrvSession sess, TreeConnection tree, NetworkFile file,
+                        byte[] buf, int bufPos, int siz, long filePos) throws IOException {
+        if (mMemoryPoolTuner != null) {
+            mMemoryPoolTuner.recordRequestSize(siz);
+        }
+        SimbaDiskDeviceContext ctx = getSimbaContext(tree);
+        if (ctx != null && !file.isDirectory()) {
+            flushPendingWrites(tree, file.getFullName());
+            if (ctx.getReadAheadCache() != null) {
+                int read = ctx.getReadAheadCache().read(file, buf, bufPos, siz, filePos);
+                if (read >= 0) {
+                    return read;
+                }
+            }
+            if (ctx.getWriteBehindBuffer() != null) {
+                return ctx.getWriteBehindBuffer().access(file,
+                        () -> super.readFile(sess, tree, file, buf, bufPos, siz, filePos));
+            }
+        }
+        return super.readFile(sess, tree, file, buf, bufPos, siz, filePos);
+    }
+
+    @Override
+    public int writeFile(SrvSession sess, TreeConnection tree, NetworkFile file,
+                         byte[] buf, int bufoff, int siz, long fileoff) throws IOException {
+        if (mMemoryPoolTuner != null) {
+            mMemoryPoolTuner.recordRequestSize(siz);
+        }
+        SimbaDiskDeviceContext ctx = getSimbaContext(tree);
+        if (ctx == null || file.isDirectory()) {
+            return super.writeFile(sess, tree, file, buf, bufoff, siz, fileoff);
+        }
+        String localPath = getLocalPath(tree, file.getFullName());
+        WriteBehindBuffer writeBehind = ctx.getWriteBehindBuffer();
+        if (writeBehind == null) {
+            try {
+                return super.writeFile(sess, tree, file, buf, bufoff, siz, fileoff);
+            } finally {
+                // Only invalidate afterwards, so that a concurrent read can't cache the old data
+                // again.
+                ctx.onDataWritten(localPath);
+            }
+        }
+        // Buffered data is reported by the buffer's flush listener once it has been written out.
+        writeBehind.write(file, localPath, buf, bufoff, siz, fileoff, () -> {
+            try {
+                return super.writeFile(sess, tree, file, buf, bufoff, siz, fileoff);
+            } finally {
+                ctx.onDataWritten(localPath);
+            }
+        });
+        return siz;
+    }
+
+    @Override
+    public void truncateFile(SrvSession sess, TreeConnection tree, NetworkFile file, long siz)
+            throws IOException {
+        SimbaDiskDeviceContext ctx = getSimbaContext(tree);
+        if (ctx == null) {
+            super.truncateFile(sess, tree, file, siz);
+            return;
+        }
+        String localPath = getLocalPath(tree, file.getFullName());
+        WriteBehindBuffer writeBehind = ctx.getWriteBehindBuffer();
+        try {
+            if (writeBehind != null) {
+                // Data buffered for any handle must not extend the file again later on.
+                writeBehind.flush(localPath);
+                writeBehind.access(file, () -> {
+                    super.truncateFile(sess, tree, file, siz);
+                    return null;
+                });
+            } else {
+                super.truncateFile(sess, tree, file, siz);
+            }
+        } finally {
+            ctx.onDataWritten(localPath);
+        }
+    }
+
+    @Override
+    public FileInfo getFileInformation(SrvSession sess, TreeConnection tree, String name)
+            throws IOException {
+        if (isKnownAbsent(tree, name)) {
+            return null;
+        }
+        flushPendingWrites(tree, name);
+
+        FileInfoCache cache = getFileInfoCache(tree);
+        if (cache == null) {
+            return super.getFileInformation(sess, tree, name);
+        }
+        String localPath = getLocalPath(tree, name);
+        FileInfo info = cache.getInfo(localPath);
+        if (info != null) {
+            return info != FileInfoCache.NONEXISTENT ? info : null;
+        }
+        long generation = cache.getGeneration();
+        info = super.getFileInformation(sess, tree, name);
+        cache.putInfo(localPath, info, generation);
+        return info;
+    }
+
+    @Override
+    public FileStatus fileExists(SrvSession sess, TreeConnection tree, String name) {
+        if (isKnownAbsent(tree, name)) {
+            return FileStatus.NotExist;
+        }
+        FileInfoCache cache = getFileInfoCache(tree);
+        if (cache == null) {
+            return super.fileExists(sess, tree, name);
+        }
+        String localPath = getLocalPath(tree, name);
+        FileStatus status = cache.getStatus(localPath);
+        if (status == null) {
+            long generation = cache.getGeneration();
+            status = super.fileExists(sess, tree, name);
+            cache.putStatus(localPath, status, generation);
+        }
+        return status;
+    }
+
+    @Override
+    public void setFileInformation(SrvSession sess, TreeConnection tree, String name,
+                                   FileInfo info) throws IOException {
+        flushPendingWrites(tree, name);
+        super.setFileInformation(sess, tree, name, info);
+        onEntryChanged(tree, name);
+    }
+
+    @Override
+    public void renameFile(SrvSession sess, TreeConnection tree, String oldName, String newName,
+                           NetworkFile netFile) throws IOException {
+        flushPendingWrites(tree, oldName);
+        super.renameFile(sess, tree, oldName, newName, netFile);
+        onTreeChanged(tree, oldName);
+        onTreeChanged(tree, newName);
+    }
+
+    @Override
+    public void deleteFile(SrvSession sess, TreeConnection tree, String name)
+            throws IOException {
+        flushPendingWrites(tree, name);
+        super.deleteFile(sess, tree, name);
+        onEntryChanged(tree, name);
+    }
+
+    @Override
+    public SearchContext startSearch(SrvSession sess, TreeConnection tree, String searchPath,
+                                     int attrib, EnumSet<SearchFlags> flags)
+            throws FileNotFoundException {
+        SimbaDiskDeviceContext ctx = getSimbaContext(tree);
+        DirectoryCache dirCache = ctx != null ? ctx.getDirectoryCache() : null;
+        if (dirCache != null) {
+            try {
+                String localPath = mapPath(getLocalPath(tree, searchPath));
+                String[] paths = localPath != null ?
+                        FileName.splitPath(localPath, File.separatorChar) : new String[2];
+                if (paths[1] != null && WildCard.containsWildcards(paths[1])) {
+                    List<DirectoryCache.Entry> entries = dirCache.getEntries(paths[0]);
+                    if (entries != null) {
+                        SearchContext search = new DirectoryCacheSearchContext(entries,
+                                new WildCard(paths[1], false), FileName.splitPath(searchPath)[0]);
+                        search.setSearchString(paths[0]);
+                        return search;
+                    }
+                }
+            } catch (IOException ignored) {
+                // Let the regular search report the error
+            }
+        }
+        return super.startSearch(sess, tree, searchPath, attrib, flags);
+    }
+
+    private void attachFile(TreeConnection tree, FileOpenParams params, NetworkFile file) {
+        SimbaDiskDeviceContext ctx = getSimbaContext(tree);
+        if (ctx == null || file.isDirectory() || file.isStream()) {
+            return;
+        }
+
+        String localPath = getLocalPath(tree, params.getPath());
+        if (ctx.getReadAheadCache() != null) {
+            ctx.getReadAheadCache().attach(file, localPath);
+        }
+        // Honour write-through requests from the client.
+        if (ctx.getWriteBehindBuffer() != null && !params.isReadOnlyAccess() &&
+                !params.isWriteThrough()) {
+            ctx.getWriteBehindBuffer().attach(file, localPath);
+        }
+    }
+
+    private static boolean isKnownAbsent(TreeConnection tree, String path) {
+        SimbaDiskDeviceContext ctx = getSimbaContext(tree);
+        return ctx != null && ctx.getJunkFileFilter() != null &&
+                ctx.getJunkFileFilter().isKnownAbsent(getLocalPath(tree, path));
+    }
+
+    private static void onEntryChanged(TreeConnection tree, String path) {
+        SimbaDiskDeviceContext ctx = getSimbaContext(tree);
+        if (ctx != null) {
+            ctx.onEntryChanged(getLocalPath(tree, path));
+        }
+    }
+
+    private static void onTreeChanged(TreeConnection tree, String path) {
+        SimbaDiskDeviceContext ctx = getSimbaContext(tree);
+        if (ctx != null) {
+            ctx.onTreeChanged(getLocalPath(tree, path));
+        }
+    }
+
+    private void flushPendingWrites(TreeConnection tree, String path) throws IOException {
+        WriteBehindBuffer writeBehind = getWriteBehindBuffer(tree);
+        if (writeBehind != null) {
+            writeBehind.flush(getLocalPath(tree, path));
+        }
+    }
+
+    private static SimbaDiskDeviceContext getSimbaContext(TreeConnection tree) {
+        return tree.getContext() instanceof SimbaDiskDeviceContext ctx ? ctx : null;
+    }
+
+    private static WriteBehindBuffer getWriteBehindBuffer(TreeConnection tree) {
+        SimbaDiskDeviceContext ctx = getSimbaContext(tree);
+        return ctx != null ? ctx.getWriteBehindBuffer() : null;
+    }
+
+    private static FileInfoCache getFileInfoCache(TreeConnection tree) {
+        SimbaDiskDeviceContext ctx = getSimbaContext(tree);
+        return ctx != null ? ctx.getFileInfoCache() : null;
+    }
+
+    static String getLocalPath(TreeConnection tree, String path) {
+        return FileName.buildPath(tree.getContext().getDeviceName(), path, null,
+                File.separatorChar);
+    }
 }
@@ -0,0 +1,21 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package de.buttercookie.simbadroid.jlan;
+
+import java.io.IOException;
+
+/**
+ * Platform specific queries about the volumes the shares are stored on.
+ */
+interface VolumeInfo {
+    record Usage(long blockSize, long totalBlocks, long availableBlocks) {}
+
+    Usage getUsage(String path) throws IOException;
+
+    /**
+     * @return The ID of the device containing the file, as reported by <code>stat</code>.
+     */
+    long getDeviceId(String path) throws IOException;
+}
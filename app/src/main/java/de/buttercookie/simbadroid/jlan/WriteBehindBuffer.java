@@ -0,0 +1,385 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package de.buttercookie.simbadroid.jlan;
+
+import android.util.Log;
+
+import org.filesys.server.filesys.NetworkFile;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Coalesces contiguous writes to the same file handle into larger chunks before passing them on
+ * to the file system.
+ * <p>
+ * Buffering only starts with the second of two contiguous writes, so handles that are written to
+ * just once don't need a buffer at all. Buffers grow with the amount of data actually pending, up
+ * to the chunk size, and are returned to a small pool shared by all handles once written out.
+ * <p>
+ * Pending data is written out once the chunk is full, when a write arrives at a different offset,
+ * when the file is flushed or closed, before the file is read from or queried, and after it has
+ * been idle for the configured delay. Errors that occur while writing out data in the background
+ * are reported on the next operation on the same file handle.
+ * <p>
+ * As data is written out in the background, all other I/O on a file handle that has a buffer must
+ * go through {@link #write} and {@link #access}, which serialize it with the background flushes.
+ * Writes through one handle also write out the data buffered for other handles to the same file
+ * first, so that it can't overwrite newer data later on.
+ */
+class WriteBehindBuffer {
+    private static final String LOGTAG = "WriteBehindBuffer";
+
+    private static final int MIN_BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_POOLED_CHUNKS = 4;
+    private static final long TIMER_KEEP_ALIVE_MS = 10_000;
+
+    private final int mChunkSize;
+    private final long mFlushDelayMs;
+    private final Consumer<String> mFlushListener;
+
+    private final Map<NetworkFile, Entry> mEntries = new ConcurrentHashMap<>();
+    private final ScheduledThreadPoolExecutor mTimer;
+    private final AtomicBoolean mFlushScheduled = new AtomicBoolean();
+
+    // Guarded by 'mPool'.
+    private final ArrayDeque<byte[]> mPool = new ArrayDeque<>();
+    private long mPoolBytes;
+
+    /**
+     * @param chunkSize The maximum amount of data buffered per file handle.
+     * @param flushDelayMs How long pending data may stay buffered without further writes.
+     * @param flushListener Called with the local path of a file after data has been written to it.
+     */
+    WriteBehindBuffer(int chunkSize, long flushDelayMs, Consumer<String> flushListener) {
+        mChunkSize = chunkSize;
+        mFlushDelayMs = flushDelayMs;
+        mFlushListener = flushListener;
+
+        mTimer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "WriteBehind");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // The timer only runs while there is pending data, so don't keep its thread around
+        // otherwise.
+        mTimer.setKeepAliveTime(TIMER_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS);
+        mTimer.allowCoreThreadTimeOut(true);
+    }
+
+    void attach(NetworkFile file, String localPath) {
+        mEntries.put(file, new Entry(file, localPath));
+    }
+
+    /**
+     * Write out any pending data and stop buffering writes for the given file.
+     */
+    void detach(NetworkFile file) throws IOException {
+        Entry entry = mEntries.remove(file);
+        if (entry != null) {
+            entry.close();
+        }
+    }
+
+    /**
+     * Write to a file handle, buffering the data if possible.
+     *
+     * @param localPath The absolute path of the file on the local file system.
+     * @param directWrite Writes the data to the file if it can't be buffered.
+     * @return <code>true</code> if the data has been buffered, <code>false</code> if it has been
+     *         written using <code>directWrite</code>.
+     */
+    boolean write(NetworkFile file, String localPath, byte[] buf, int bufPos, int len,
+                  long filePos, FileOperation<?> directWrite) throws IOException {
+        flushOtherHandles(file, localPath);
+        Entry entry = mEntries.get(file);
+        if (entry == null) {
+            directWrite.run();
+            return false;
+        }
+        return entry.write(buf, bufPos, len, filePos, directWrite);
+    }
+
+    /**
+     * Run an operation on a file handle, such as a read, without any data being written out
+     * through the same handle at the same time.
+     */
+    <T> T access(NetworkFile file, FileOperation<T> operation) throws IOException {
+        Entry entry = mEntries.get(file);
+        if (entry == null) {
+            return operation.run();
+        }
+        synchronized (entry) {
+            return operation.run();
+        }
+    }
+
+    /**
+     * Write out any pending data for the given file handle.
+     */
+    void flush(NetworkFile file) throws IOException {
+        Entry entry = mEntries.get(file);
+        if (entry != null) {
+            entry.flush(true);
+        }
+    }
+
+    /**
+     * Write out any pending data for all handles referring to the given file.
+     */
+    void flush(String localPath) throws IOException {
+        if (mEntries.isEmpty()) {
+            return;
+        }
+        for (Entry entry : mEntries.values()) {
+            if (entry.mLocalPath.equals(localPath)) {
+                entry.flush(true);
+            }
+        }
+    }
+
+    void shutdown() {
+        mTimer.shutdownNow();
+        for (Entry entry : mEntries.values()) {
+            try {
+                entry.close();
+            } catch (IOException ignored) {}
+        }
+        mEntries.clear();
+        synchronized (mPool) {
+            mPool.clear();
+            mPoolBytes = 0;
+        }
+    }
+
+    private void flushOtherHandles(NetworkFile file, String localPath) {
+        if (mEntries.isEmpty()) {
+            return;
+        }
+        for (Entry entry : mEntries.values()) {
+            if (entry.mFile != file && entry.mLocalPath.equals(localPath)) {
+                entry.flushOrDrop();
+            }
+        }
+    }
+
+    private void scheduleFlush() {
+        if (mFlushScheduled.compareAndSet(false, true)) {
+            mTimer.schedule(this::flushIdle, Math.max(mFlushDelayMs / 2, 1),
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flushIdle() {
+        // Cleared first, so that data buffered while we're running schedules another run.
+        mFlushScheduled.set(false);
+        long now = System.nanoTime();
+        boolean pending = false;
+        for (Entry entry : mEntries.values()) {
+            try {
+                pending |= entry.flushIfIdle(now);
+            } catch (IOException ignored) {
+                // Already logged and recorded for the next operation on this file
+            }
+        }
+        if (pending) {
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * @return A buffer of at least the given size, but no larger than the chunk size.
+     */
+    private byte[] obtainBuffer(int minSize) {
+        synchronized (mPool) {
+            Iterator<byte[]> it = mPool.iterator();
+            while (it.hasNext()) {
+                byte[] buffer = it.next();
+                if (buffer.length >= minSize) {
+                    it.remove();
+                    mPoolBytes -= buffer.length;
+                    return buffer;
+                }
+            }
+        }
+        int size = Math.max(Integer.highestOneBit(Math.max(minSize - 1, 1)) << 1, MIN_BUFFER_SIZE);
+        return new byte[Math.min(size, mChunkSize)];
+    }
+
+    private void recycleBuffer(byte[] buffer) {
+        synchronized (mPool) {
+            if (mPoolBytes + buffer.length <= (long) MAX_POOLED_CHUNKS * mChunkSize) {
+                mPool.push(buffer);
+                mPoolBytes += buffer.length;
+            }
+        }
+    }
+
+    private final class Entry {
+        private final NetworkFile mFile;
+        private final String mLocalPath;
+
+        // Guarded by 'this'.
+        private byte[] mData;
+        private long mStart;
+        private int mLength;
+        private long mLastWrite;
+        private IOException mError;
+        // Where the last write that went directly to the file ended.
+        private long mNextPos = -1;
+
+        Entry(NetworkFile file, String localPath) {
+            mFile = file;
+            mLocalPath = localPath;
+        }
+
+        synchronized boolean write(byte[] buf, int bufPos, int len, long filePos,
+                                   FileOperation<?> directWrite) throws IOException {
+            throwPendingError();
+
+            if (mLength > 0 && (filePos != mStart + mLength || mLength + len > mChunkSize)) {
+                flushLocked();
+            }
+            if (mLength == 0 && (len >= mChunkSize || filePos != mNextPos)) {
+                // Only start buffering once the client is actually writing sequentially.
+                directWrite.run();
+                mNextPos = filePos + len;
+                return false;
+            }
+
+            if (mLength == 0) {
+                mStart = filePos;
+            }
+            if (mData == null || mData.length < mLength + len) {
+                byte[] data = obtainBuffer(mLength + len);
+                if (mData != null) {
+                    System.arraycopy(mData, 0, data, 0, mLength);
+                    recycleBuffer(mData);
+                }
+                mData = data;
+            }
+            System.arraycopy(buf, bufPos, mData, mLength, len);
+            mLength += len;
+            mLastWrite = System.nanoTime();
+
+            // Keep the size reported for the open file in line with what the client has written.
+            long end = mStart + mLength;
+            if (end > mFile.getFileSize()) {
+                mFile.setFileSize(end);
+            }
+
+            if (mLength == mChunkSize) {
+                flushLocked();
+            } else {
+                scheduleFlush();
+            }
+            return true;
+        }
+
+        /**
+         * Write out any pending data, and only then report an error from an earlier background
+         * flush.
+         */
+        synchronized void flush(boolean reportError) throws IOException {
+            flushLocked();
+            if (reportError) {
+                throwPendingError();
+            }
+        }
+
+        /**
+         * Write out any pending data and give up the buffer, even if writing has failed.
+         */
+        synchronized void close() throws IOException {
+            try {
+                flush(true);
+            } finally {
+                mLength = 0;
+                releaseData();
+            }
+        }
+
+        /**
+         * Write out any pending data because another handle is about to write to the same file.
+         * If that fails, the data is dropped rather than kept around to be retried, as it would
+         * overwrite what the other handle writes. The error is reported on the next operation on
+         * this handle.
+         */
+        synchronized void flushOrDrop() {
+            try {
+                flushLocked();
+            } catch (IOException e) {
+                Log.w(LOGTAG, "Write to " + mLocalPath + " failed, dropping buffered data", e);
+                mError = e;
+                mFile.setDelayedWriteError(true);
+                mLength = 0;
+                releaseData();
+            }
+        }
+
+        /**
+         * @return <code>true</code> if there is still data waiting to be written out later.
+         */
+        synchronized boolean flushIfIdle(long now) throws IOException {
+            if (mLength == 0 || mError != null) {
+                // After a failure, the data is kept until the next operation on this handle.
+                return false;
+            }
+            if (now - mLastWrite >= TimeUnit.MILLISECONDS.toNanos(mFlushDelayMs)) {
+                try {
+                    flushLocked();
+                } catch (IOException e) {
+                    Log.w(LOGTAG, "Delayed write to " + mLocalPath + " failed", e);
+                    mError = e;
+                    mFile.setDelayedWriteError(true);
+                    throw e;
+                }
+                return false;
+            }
+            return true;
+        }
+
+        private void flushLocked() throws IOException {
+            if (mLength == 0) {
+                return;
+            }
+            // Keep the data until it has actually been written, so that it can be retried.
+            mFile.writeFile(mData, mLength, 0, mStart);
+            mNextPos = mStart + mLength;
+            mLength = 0;
+            releaseData();
+            mFlushListener.accept(mLocalPath);
+        }
+
+        private void releaseData() {
+            if (mData != null) {
+                recycleBuffer(mData);
+                mData = null;
+            }
+        }
+
+        private void throwPendingError() throws IOException {
+            if (mError != null) {
+                IOException error = mError;
+                mError = null;
+                throw error;
+            }
+        }
+    }
+
+    /**
+     * An operation that accesses a file handle directly.
+     */
+    interface FileOperation<T> {
+        T run() throws IOException;
+    }
+}
@@ -0,0 +1,296 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package de.buttercookie.simbadroid.service;
+
+import android.util.Log;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import javax.jmdns.JmDNS;
+import javax.jmdns.ServiceInfo;
+import javax.jmdns.impl.JmDNSImpl;
+import javax.jmdns.impl.ServiceInfoImpl;
+
+import de.buttercookie.simbadroid.util.ThreadUtils;
+
+/**
+ * Advertises the server via mDNS, both as a custom .local hostname and as an SMB service of the
+ * same name.
+ * <p>
+ * There's one responder per address, and responders are kept around for as long as their address
+ * and the name stay the same. When moving between networks, only the responders for addresses
+ * that have gone away are closed, which sends goodbye packets for their records, and responders for
+ * the new addresses start announcing right away, so clients don't have to wait for the records of
+ * unaffected addresses to be probed and announced again.
+ * <p>
+ * JmDNS renames conflicting records by itself, but not necessarily in a plain-DNS-friendly way, and
+ * possibly differently for each address. So if any responder didn't get the name we asked for, the
+ * name is given up on all addresses and we try again with a numeric suffix.
+ */
+class MdnsResponder {
+    private static final String LOGTAG = "mDNS";
+
+    private static final String SERVICE_TYPE = "_microsoft-ds._tcp.local.";
+    private static final String MDNS_DOMAIN = ".local.";
+    private static final int INITIAL_NAME_SUFFIX = 1;
+    private static final int MAX_NAME_ATTEMPTS = 10;
+    private static final long PROBE_TIMEOUT_MS = 10000;
+    private static final long PROBE_POLL_INTERVAL_MS = 50;
+    private static final long WORKER_KEEP_ALIVE_MS = 10_000;
+
+    // Starting and closing a responder blocks while it sends its packets, so do that in parallel.
+    private static final ExecutorService sExecutor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "MdnsResponder");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final String mBaseName;
+    private final int mPort;
+    private final Consumer<String> mListener;
+    private final Executor mWorker;
+    private final Executor mListenerExecutor;
+    private final long mProbeTimeoutMs;
+
+    // Only accessed on the worker thread. The suffix is kept across restarts, so that the
+    // server's name stays the same as long as there's no new conflict.
+    private final Map<InetAddress, JmDNS> mJmDNS = new HashMap<>();
+    private int mNameSuffix = INITIAL_NAME_SUFFIX;
+    @Nullable
+    private String mName;
+
+    /**
+     * @param baseName The preferred hostname and service name, without any domain.
+     * @param port The port to advertise the SMB service on.
+     * @param listener Called on the UI thread with the name that is currently advertised, or
+     *                 <code>null</code> if there is none.
+     */
+    MdnsResponder(String baseName, int port, Consumer<String> listener) {
+        this(baseName, port, listener, createWorker(), ThreadUtils::postToUiThread,
+                PROBE_TIMEOUT_MS);
+    }
+
+    /**
+     * @param worker Runs all updates, one after another.
+     * @param listenerExecutor Runs the listener.
+     * @param probeTimeoutMs How long to wait for a responder to finish probing for its name.
+     */
+    @VisibleForTesting
+    MdnsResponder(String baseName, int port, Consumer<String> listener, Executor worker,
+                  Executor listenerExecutor, long probeTimeoutMs) {
+        mBaseName = baseName;
+        mPort = port;
+        mListener = listener;
+        mWorker = worker;
+        mListenerExecutor = listenerExecutor;
+        mProbeTimeoutMs = probeTimeoutMs;
+    }
+
+    /**
+     * Updates wait for probing to finish, which can take several seconds per attempt, so they
+     * get a thread of their own instead of holding up the shared background thread.
+     */
+    private static Executor createWorker() {
+        ThreadPoolExecutor worker = new ThreadPoolExecutor(1, 1,
+                WORKER_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), r -> {
+                    Thread thread = new Thread(r, "MdnsResponderWorker");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        // Updates are rare, so don't keep the thread around in between.
+        worker.allowCoreThreadTimeOut(true);
+        return worker;
+    }
+
+    /**
+     * @param addrs The IP addresses to advertise, each through a responder bound to that address,
+     *              so both A and AAAA records are published on dual-stack networks. If empty,
+     *              advertising is stopped.
+     */
+    @MainThread
+    void setAddresses(List<InetAddress> addrs) {
+        List<InetAddress> addresses = List.copyOf(addrs);
+        mWorker.execute(() -> update(addresses));
+    }
+
+    @MainThread
+    void stop() {
+        setAddresses(Collections.emptyList());
+    }
+
+    private void update(List<InetAddress> addresses) {
+        if (addresses.isEmpty()) {
+            apply(addresses, null);
+            publish(null);
+            return;
+        }
+
+        if (mName != null && apply(addresses, mName)) {
+            publish(mName);
+            return;
+        }
+        if (mName != null) {
+            // Someone on one of the new networks is already using our name.
+            mNameSuffix++;
+        }
+        for (int i = 0; i < MAX_NAME_ATTEMPTS; i++, mNameSuffix++) {
+            String name = getName(mNameSuffix);
+            if (apply(addresses, name)) {
+                publish(name);
+                return;
+            }
+            Log.d(LOGTAG, "Name " + name + " is already taken");
+        }
+        Log.w(LOGTAG, "Giving up on finding an unused name");
+        apply(Collections.emptyList(), null);
+        mNameSuffix = INITIAL_NAME_SUFFIX;
+        publish(null);
+    }
+
+    /**
+     * Make sure there's exactly one responder advertising the given name for each address.
+     *
+     * @return <code>false</code> if any responder had to pick a different name because of a
+     * conflict.
+     */
+    private boolean apply(List<InetAddress> addresses, @Nullable String name) {
+        boolean nameChanged = !Objects.equals(mName, name);
+        mName = name;
+        if (!nameChanged && mJmDNS.keySet().equals(new HashSet<>(addresses))) {
+            return true;
+        }
+
+        List<CompletableFuture<?>> tasks = new ArrayList<>();
+        Iterator<Map.Entry<InetAddress, JmDNS>> it = mJmDNS.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<InetAddress, JmDNS> entry = it.next();
+            if (nameChanged || !addresses.contains(entry.getKey())) {
+                JmDNS jmDNS = entry.getValue();
+                tasks.add(CompletableFuture.runAsync(() -> close(jmDNS), sExecutor));
+                it.remove();
+            }
+        }
+
+        Map<InetAddress, CompletableFuture<Responder>> created = new HashMap<>();
+        for (InetAddress addr : addresses) {
+            if (!mJmDNS.containsKey(addr)) {
+                created.put(addr, CompletableFuture.supplyAsync(() -> create(addr, name),
+                        sExecutor));
+            }
+        }
+        tasks.addAll(created.values());
+        CompletableFuture.allOf(tasks.toArray(new CompletableFuture[0])).join();
+
+        boolean gotName = true;
+        for (Map.Entry<InetAddress, CompletableFuture<Responder>> entry : created.entrySet()) {
+            Responder responder = entry.getValue().join();
+            if (responder != null) {
+                mJmDNS.put(entry.getKey(), responder.jmDNS());
+                gotName &= responder.gotName();
+            }
+        }
+        return gotName;
+    }
+
+    /**
+     * @param gotName Whether the responder got the name we asked for.
+     */
+    private record Responder(JmDNS jmDNS, boolean gotName) {}
+
+    /**
+     * Start a responder and register our service with it, and wait until the hostname and the
+     * service have been probed for, so that we know whether they had to be renamed because of a
+     * conflict.
+     */
+    @Nullable
+    private Responder create(InetAddress addr, String name) {
+        JmDNS jmDNS = null;
+        try {
+            jmDNS = JmDNS.create(addr, name);
+            ServiceInfo service = ServiceInfo.create(SERVICE_TYPE, name, mPort, "");
+            jmDNS.registerService(service);
+            waitForProbing(jmDNS, service, mProbeTimeoutMs);
+            boolean gotName = (name + MDNS_DOMAIN).equalsIgnoreCase(jmDNS.getHostName()) &&
+                    name.equals(service.getName());
+            return new Responder(jmDNS, gotName);
+        } catch (IOException e) {
+            Log.d(LOGTAG, "Error starting mDNS responder on " + addr, e);
+            if (jmDNS != null) {
+                close(jmDNS);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Registering a service is supposed to wait until it has been announced, but JmDNS gives up
+     * waiting after the first state change, which is long before probing has finished, so poll
+     * the state ourselves. If the hostname or the service is renamed because of a conflict, we
+     * don't wait for the new name to be probed, as we're going to give it up anyway.
+     */
+    @VisibleForTesting
+    static void waitForProbing(JmDNS jmDNS, ServiceInfo service, long timeoutMs) {
+        String hostName = jmDNS.getHostName();
+        String serviceName = service.getName();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (isProbing(jmDNS, service)) {
+            if (!hostName.equals(jmDNS.getHostName()) || !serviceName.equals(service.getName())) {
+                return;
+            }
+            if (System.nanoTime() > deadline) {
+                Log.w(LOGTAG, "Timed out waiting for " + service.getName() + " to be probed");
+                return;
+            }
+            try {
+                Thread.sleep(PROBE_POLL_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static boolean isProbing(JmDNS jmDNS, ServiceInfo service) {
+        return (jmDNS instanceof JmDNSImpl jmDNSImpl && jmDNSImpl.isProbing()) ||
+                (service instanceof ServiceInfoImpl serviceImpl && serviceImpl.isProbing());
+    }
+
+    private static void close(JmDNS jmDNS) {
+        try {
+            jmDNS.close();
+        } catch (IOException e) {
+            Log.d(LOGTAG, "Error stopping mDNS responder", e);
+        }
+    }
+
+    private String getName(int suffix) {
+        return suffix > INITIAL_NAME_SUFFIX ? mBaseName + "-" + suffix : mBaseName;
+    }
+
+    private void publish(@Nullable String name) {
+        mListenerExecutor.execute(() -> mListener.accept(name));
+    }
+}
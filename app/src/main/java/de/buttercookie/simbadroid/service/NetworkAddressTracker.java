@@ -0,0 +1,228 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package de.buttercookie.simbadroid.service;
+
+import static android.system.OsConstants.IFA_F_DEPRECATED;
+import static android.system.OsConstants.IFA_F_TEMPORARY;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.LinkAddress;
+import android.net.LinkProperties;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.util.Log;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.core.content.ContextCompat;
+
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import de.buttercookie.simbadroid.util.IpSort;
+import de.buttercookie.simbadroid.util.ThreadUtils;
+
+/**
+ * Keeps track of the addresses the server can be reached on.
+ * <p>
+ * The addresses of each network are taken from the <code>LinkProperties</code> delivered with
+ * the network callbacks, so there's no need to scan all network interfaces on every change.
+ * Tethering and hotspot interfaces aren't networks as far as <code>ConnectivityManager</code> is
+ * concerned, so those are looked up by name whenever the tethering state changes.
+ * <p>
+ * Only Wi-Fi and Ethernet networks are tracked, as the server is meant for the local network.
+ * Mobile data addresses, which often aren't site-local, would otherwise be sorted ahead of the
+ * LAN addresses and become the default address to serve on.
+ * <p>
+ * Bursts of callbacks are collected and the listener is only notified once they have settled
+ * and the resulting address list has actually changed.
+ */
+class NetworkAddressTracker {
+    private static final String LOGTAG = "NetworkAddressTracker";
+
+    // The sticky tethering state broadcast and its list of active interfaces aren't public API.
+    private static final String ACTION_TETHER_STATE_CHANGED =
+            "android.net.conn.TETHER_STATE_CHANGED";
+    private static final String EXTRA_ACTIVE_TETHER = "tetherArray";
+
+    private final Context mContext;
+    private final long mDebounceMs;
+    private final Consumer<List<InetAddress>> mListener;
+    private final Runnable mFlushRunnable = this::flush;
+
+    // Only accessed on the UI thread.
+    private final Map<Network, List<LinkAddress>> mNetworkAddresses = new HashMap<>();
+    private List<String> mTetherInterfaces = Collections.emptyList();
+    private List<InetAddress> mAddresses = Collections.emptyList();
+    private ConnectivityManager.NetworkCallback mNetCallback;
+    private BroadcastReceiver mTetherReceiver;
+
+    /**
+     * @param debounceMs How long to wait for further changes before notifying the listener.
+     * @param listener Called on the UI thread with the sorted list of addresses.
+     */
+    NetworkAddressTracker(Context context, long debounceMs, Consumer<List<InetAddress>> listener) {
+        mContext = context;
+        mDebounceMs = debounceMs;
+        mListener = listener;
+    }
+
+    @MainThread
+    void start() {
+        if (mNetCallback != null) {
+            return;
+        }
+
+        final ConnectivityManager connMgr = mContext.getSystemService(ConnectivityManager.class);
+        mNetCallback = new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onAvailable(@NonNull Network network) {
+                // Before Android O, the link properties aren't guaranteed to follow.
+                LinkProperties linkProperties = connMgr.getLinkProperties(network);
+                if (linkProperties != null) {
+                    onLinkPropertiesChanged(network, linkProperties);
+                }
+            }
+
+            @Override
+            public void onLost(@NonNull Network network) {
+                ThreadUtils.postToUiThread(() -> {
+                    if (mNetworkAddresses.remove(network) != null) {
+                        scheduleFlush();
+                    }
+                });
+            }
+
+            @Override
+            public void onLinkPropertiesChanged(@NonNull Network network,
+                                                @NonNull LinkProperties linkProperties) {
+                List<LinkAddress> addresses = linkProperties.getLinkAddresses();
+                ThreadUtils.postToUiThread(() -> {
+                    if (mNetCallback != null &&
+                            !addresses.equals(mNetworkAddresses.put(network, addresses))) {
+                        scheduleFlush();
+                    }
+                });
+            }
+        };
+        // A request with several transports matches networks with any of them.
+        NetworkRequest request = new NetworkRequest.Builder()
+                .addTransportType(NetworkCapabilities.TRANSPORT_WIFI)
+                .addTransportType(NetworkCapabilities.TRANSPORT_ETHERNET)
+                .build();
+        connMgr.registerNetworkCallback(request, mNetCallback);
+
+        mTetherReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                List<String> interfaces = intent.getStringArrayListExtra(EXTRA_ACTIVE_TETHER);
+                setTetherInterfaces(interfaces != null ? interfaces : Collections.emptyList());
+            }
+        };
+        ContextCompat.registerReceiver(mContext, mTetherReceiver,
+                new IntentFilter(ACTION_TETHER_STATE_CHANGED),
+                ContextCompat.RECEIVER_NOT_EXPORTED);
+    }
+
+    @MainThread
+    void stop() {
+        if (mNetCallback == null) {
+            return;
+        }
+        ConnectivityManager connMgr = mContext.getSystemService(ConnectivityManager.class);
+        connMgr.unregisterNetworkCallback(mNetCallback);
+        mNetCallback = null;
+        mContext.unregisterReceiver(mTetherReceiver);
+        mTetherReceiver = null;
+
+        ThreadUtils.removeCallbacksFromUiThread(mFlushRunnable);
+        mNetworkAddresses.clear();
+        mTetherInterfaces = Collections.emptyList();
+        mAddresses = Collections.emptyList();
+    }
+
+    private void setTetherInterfaces(List<String> interfaces) {
+        if (!interfaces.equals(mTetherInterfaces)) {
+            mTetherInterfaces = interfaces;
+            scheduleFlush();
+        }
+    }
+
+    private void scheduleFlush() {
+        ThreadUtils.removeCallbacksFromUiThread(mFlushRunnable);
+        ThreadUtils.postDelayedToUiThread(mFlushRunnable, mDebounceMs);
+    }
+
+    private void flush() {
+        Set<InetAddress> addresses = new LinkedHashSet<>();
+        for (List<LinkAddress> linkAddresses : mNetworkAddresses.values()) {
+            for (LinkAddress linkAddress : linkAddresses) {
+                // Temporary addresses come and go, and deprecated ones are about to go.
+                if ((linkAddress.getFlags() & (IFA_F_TEMPORARY | IFA_F_DEPRECATED)) == 0 &&
+                        isServableAddress(linkAddress.getAddress())) {
+                    addresses.add(linkAddress.getAddress());
+                }
+            }
+        }
+        for (String name : mTetherInterfaces) {
+            addresses.addAll(getInterfaceAddresses(name));
+        }
+
+        List<InetAddress> sortedAddresses = addresses.stream()
+                .sorted(new IpSort.InetAddressComparator(false))
+                .toList();
+        if (!sortedAddresses.equals(mAddresses)) {
+            mAddresses = sortedAddresses;
+            mListener.accept(sortedAddresses);
+        }
+    }
+
+    private static List<InetAddress> getInterfaceAddresses(String name) {
+        List<InetAddress> addresses = new ArrayList<>();
+        try {
+            NetworkInterface intf = NetworkInterface.getByName(name);
+            if (intf != null && intf.isUp()) {
+                for (InetAddress addr : Collections.list(intf.getInetAddresses())) {
+                    if (isServableAddress(addr)) {
+                        addresses.add(addr);
+                    }
+                }
+            }
+        } catch (SocketException e) {
+            Log.w(LOGTAG, "Could not get addresses of " + name, e);
+        }
+        return addresses;
+    }
+
+    /**
+     * @return <code>true</code> for IPv4 addresses and global or unique local IPv6 addresses.
+     * IPv6 link-local addresses would need a scope that clients can't know.
+     */
+    private static boolean isServableAddress(@Nullable InetAddress addr) {
+        if (addr instanceof Inet4Address) {
+            return !addr.isLoopbackAddress();
+        }
+        return addr instanceof Inet6Address && !addr.isLinkLocalAddress() &&
+                !addr.isLoopbackAddress() && !addr.isMulticastAddress() &&
+                !addr.isAnyLocalAddress();
+    }
+}
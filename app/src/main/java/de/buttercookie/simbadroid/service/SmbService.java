@@ -5,7 +5,6 @@
 package de.buttercookie.simbadroid.service;
 
 import static de.buttercookie.simbadroid.Intents.ACTION_STOP;
-import static de.buttercookie.simbadroid.util.Iptables.iptables;
 
 import android.Manifest;
 import android.annotation.SuppressLint;
@@ -17,47 +16,50 @@ import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.ServiceInfo;
-import android.net.ConnectivityManager;
-import android.net.LinkProperties;
-import android.net.Network;
 import android.net.NetworkCapabilities;
-import android.net.NetworkRequest;
-import android.net.nsd.NsdManager;
-import android.net.nsd.NsdServiceInfo;
 import android.os.Binder;
 import android.os.Build;
 import android.os.IBinder;
 import android.os.PowerManager;
+import android.text.format.Formatter;
 import android.util.Log;
 import android.widget.Toast;
 
-import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.core.app.NotificationCompat;
 import androidx.core.app.ServiceCompat;
 
 import org.filesys.smb.TcpipSMB;
 
-import java.net.Inet4Address;
+import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 import de.buttercookie.simbadroid.MainActivity;
 import de.buttercookie.simbadroid.R;
+import de.buttercookie.simbadroid.jlan.IoMetrics;
 import de.buttercookie.simbadroid.jlan.JLANFileServer;
 import de.buttercookie.simbadroid.permissions.Permissions;
+import de.buttercookie.simbadroid.util.Iptables;
+import de.buttercookie.simbadroid.util.RootShell;
 import de.buttercookie.simbadroid.util.ThreadUtils;
 
 public class SmbService extends Service {
     private static final String LOGTAG = "SmbService";
 
     public static final String EXTRA_SELECTED_IP = "de.buttercookie.simbadroid.service.SELECTED_IP";
+    /**
+     * Value for {@link #EXTRA_SELECTED_IP} to serve on all addresses at once.
+     */
+    public static final String ALL_ADDRESSES = "*";
 
     private static final String NOTIFICATION_CHANNEL = SmbService.class.getName();
     private static final int NOTIFICATION_ID = 1;
@@ -65,6 +67,27 @@ public class SmbService extends Service {
     private static final long NETWORK_UNAVAILABLE_TIMEOUT_MS = 20 * 60 * 1000;
     private static final String UNC_PREFIX = "\\\uFEFF\\";
     private static final String MDNS_SUFFIX = ".local";
+    private static final String IPV6_LITERAL_SUFFIX = ".ipv6-literal.net";
+    private static final long METRICS_INTERVAL_MS = 1000;
+    private static final long STATUS_MIN_INTERVAL_MS = 250;
+    private static final long ADDRESS_DEBOUNCE_MS = 500;
+    /**
+     * Redirect the standard SMB and NetBIOS ports to the unprivileged ones we're listening on.
+     * NetBIOS doesn't exist for IPv6. The rules live in their own chain, which is jumped to from
+     * PREROUTING.
+     */
+    private static final String REDIRECT_CHAIN = "SIMBADROID";
+    private static final List<Iptables.Rule> REDIRECT_RULES = List.of(
+            new Iptables.Rule(false, "nat", "PREROUTING",
+                    "-p tcp -m tcp --dport 445 -j REDIRECT --to-ports 4450"),
+            new Iptables.Rule(false, "nat", "PREROUTING",
+                    "-p udp -m udp --dport 137 -j REDIRECT --to-ports 1137"),
+            new Iptables.Rule(false, "nat", "PREROUTING",
+                    "-p udp -m udp --dport 138 -j REDIRECT --to-ports 1138"),
+            new Iptables.Rule(false, "nat", "PREROUTING",
+                    "-p tcp -m tcp --dport 139 -j REDIRECT --to-ports 1139"),
+            new Iptables.Rule(true, "nat", "PREROUTING",
+                    "-p tcp -m tcp --dport 445 -j REDIRECT --to-ports 4450"));
 
     private final IBinder binder = new SmbBinder();
 
@@ -76,24 +99,47 @@ public class SmbService extends Service {
 
     private boolean mRunning = false;
     private List<InetAddress> mInetAddresses = new ArrayList<>();
-    private final List<Network> mNetworks = new ArrayList<>();
+    private List<InetAddress> mServingAddresses = Collections.emptyList();
 
     private JLANFileServer mServer;
+    // Incremented whenever the server being created in the background is to be discarded.
+    private int mServerGeneration;
+    private JLANFileServer.StartupStage mStartupStage;
     private PowerManager.WakeLock mWakeLock;
 
-    private ConnectivityManager.NetworkCallback mNetCallback;
+    private final NetworkAddressTracker mAddressTracker =
+            new NetworkAddressTracker(this, ADDRESS_DEBOUNCE_MS, this::setInetAddresses);
     private Runnable mNetworkTimeoutRunnable;
     private long mNetworkTimeoutMs = NETWORK_UNAVAILABLE_STARTUP_TIMEOUT_MS;
 
-    private NsdManager.RegistrationListener mNsdRegistrationListener;
+    private MdnsResponder mMdnsResponder;
     private String mMDNSHostname;
-    private static final int INITIAL_SERVICE_NAME_SUFFIX = 1;
-    private int mServiceNameSuffix = INITIAL_SERVICE_NAME_SUFFIX;
     private String mSelectedIp;
 
-    public record Status(boolean serviceRunning, boolean serverRunning, String mdnsAddress,
+    private final Runnable mMetricsPoller = this::pollMetrics;
+    // The last snapshot taken and the last one that differed from its predecessor.
+    private IoMetrics.Snapshot mLastPoll;
+    private IoMetrics.Snapshot mMetrics;
+    private long mReadRate;
+    private long mWriteRate;
+
+    private StatusPublisher<Status> mStatusPublisher;
+    private NotificationCompat.Builder mNotificationBuilder;
+    private NotificationCompat.Action mStopAction;
+    private String mNotificationText;
+
+    /**
+     * @param startupStage What the server is busy with while being created, or <code>null</code>
+     *                     if it isn't being created.
+     * @param metrics The server's I/O statistics, or <code>null</code> if it isn't running.
+     * @param readRate Bytes per second read by clients during the last polling interval.
+     * @param writeRate Bytes per second written by clients during the last polling interval.
+     */
+    public record Status(boolean serviceRunning, boolean serverRunning,
+                         @Nullable JLANFileServer.StartupStage startupStage, String mdnsAddress,
                          String netBiosAddress, String ipAddress,
-                         List<InetAddress> inetAddresses) {
+                         List<InetAddress> inetAddresses, @Nullable IoMetrics.Snapshot metrics,
+                         long readRate, long writeRate) {
     }
 
     private void setIsRunning(boolean isRunning) {
@@ -115,14 +161,16 @@ public class SmbService extends Service {
 
     private void setMDNSHostname(String hostname) {
         mMDNSHostname = hostname;
-        InetAddress addr = mInetAddresses != null && !mInetAddresses.isEmpty() ?
-                mInetAddresses.get(0) : null;
-        HostnameBroadcaster.setHostname(addr, hostname);
+        updateUI();
     }
 
     @Override
     public void onCreate() {
         super.onCreate();
+        mMdnsResponder = new MdnsResponder(getString(R.string.dns_name), TcpipSMB.PORT,
+                this::setMDNSHostname);
+        mStatusPublisher = new StatusPublisher<>(STATUS_MIN_INTERVAL_MS, this::getStatus,
+                SmbServiceStatusLiveData.get()::setValue, status -> updateNotification());
         createNotificationChannel();
         initLocks();
         monitorNetwork();
@@ -145,27 +193,61 @@ public class SmbService extends Service {
             return START_NOT_STICKY;
         }
 
-        try {
-            mServer = new JLANFileServer(this, getString(R.string.dns_name));
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
+        // Root shell round trips can be slow, so set up the redirects in the background while we
+        // get the server ready.
+        RootShell.execute(() -> Iptables.setChainRules(REDIRECT_CHAIN, REDIRECT_RULES, true));
 
         Notification notification = getServiceNotification();
         ServiceCompat.startForeground(this, NOTIFICATION_ID, notification,
                 ServiceInfo.FOREGROUND_SERVICE_TYPE_MANIFEST);
         acquireLocks();
-
-        iptables(false, "nat", "A", "PREROUTING -p tcp --dport 445 -j REDIRECT --to-port 4450");
-        iptables(false, "nat", "A", "PREROUTING -p udp --dport 137 -j REDIRECT --to-port 1137");
-        iptables(false, "nat", "A", "PREROUTING -p udp --dport 138 -j REDIRECT --to-port 1138");
-        iptables(false, "nat", "A", "PREROUTING -p tcp --dport 139 -j REDIRECT --to-port 1139");
+        createServer();
 
         setIsRunning(true);
 
         return START_NOT_STICKY;
     }
 
+    /**
+     * Create the server in the background. It is started as soon as it is ready, provided that
+     * we haven't been stopped in the meantime and the network is available.
+     */
+    private void createServer() {
+        if (mServer != null) {
+            mServer.close();
+            mServer = null;
+        }
+        final int generation = ++mServerGeneration;
+        Consumer<JLANFileServer.StartupStage> progress = stage -> ThreadUtils.postToUiThread(() -> {
+            if (generation == mServerGeneration) {
+                setStartupStage(stage);
+            }
+        });
+        JLANFileServer.create(this, getString(R.string.dns_name), progress)
+                .whenCompleteAsync((server, e) -> {
+                    if (generation != mServerGeneration) {
+                        // We've been stopped in the meantime.
+                        if (server != null) {
+                            server.close();
+                        }
+                        return;
+                    }
+                    setStartupStage(null);
+                    if (e != null) {
+                        Log.e(LOGTAG, "Error creating SMB server", e);
+                        stop();
+                        return;
+                    }
+                    mServer = server;
+                    updateServerState();
+                }, ThreadUtils::postToUiThread);
+    }
+
+    private void setStartupStage(@Nullable JLANFileServer.StartupStage stage) {
+        mStartupStage = stage;
+        updateUI();
+    }
+
     private boolean handleAction(Intent intent) {
         boolean handled = false;
         final String action = intent.getAction();
@@ -181,12 +263,11 @@ public class SmbService extends Service {
             return;
         }
 
+        mServerGeneration++;
+        setStartupStage(null);
         setIsRunning(false);
 
-        iptables(false, "nat", "D", "PREROUTING -p tcp --dport 445 -j REDIRECT --to-port 4450");
-        iptables(false, "nat", "D", "PREROUTING -p udp --dport 137 -j REDIRECT --to-port 1137");
-        iptables(false, "nat", "D", "PREROUTING -p udp --dport 138 -j REDIRECT --to-port 1138");
-        iptables(false, "nat", "D", "PREROUTING -p tcp --dport 139 -j REDIRECT --to-port 1139");
+        RootShell.execute(() -> Iptables.setChainRules(REDIRECT_CHAIN, REDIRECT_RULES, false));
 
         ServiceCompat.stopForeground(this, ServiceCompat.STOP_FOREGROUND_REMOVE);
         releaseLocks();
@@ -195,10 +276,15 @@ public class SmbService extends Service {
 
     @Override
     public void onDestroy() {
-        unregisterNsdService();
+        mMdnsResponder.stop();
         unmonitorNetwork();
         stopNetworkTimeout();
-        updateUI();
+        ThreadUtils.removeCallbacksFromUiThread(mMetricsPoller);
+        mStatusPublisher.flush();
+        if (mServer != null) {
+            mServer.close();
+            mServer = null;
+        }
         super.onDestroy();
     }
 
@@ -225,30 +311,102 @@ public class SmbService extends Service {
 
         if (mRunning && isNetworkAvailable()) {
             Log.d(LOGTAG, "Starting SMB server");
-            InetAddress bindAddress = mInetAddresses.get(0);
-            if (mSelectedIp != null) {
-                for (InetAddress addr : mInetAddresses) {
-                    if (Objects.equals(addr.getHostAddress(), mSelectedIp)) {
-                        bindAddress = addr;
-                        break;
-                    }
-                }
+            List<InetAddress> addresses = getServingAddresses();
+            if (mServer.running()) {
+                mServer.rebind(addresses);
+            } else {
+                mServer.setBindAddresses(addresses);
+                mServer.start();
             }
-            mServer.setBindAddress(bindAddress);
-            mServer.start();
-            getSystemService(NotificationManager.class)
-                    .notify(NOTIFICATION_ID, getServiceNotification());
-            registerNsdService();
+            // Only advertise the addresses the server is actually reachable on. Each IPv6 address
+            // gets its own responder, which publishes the AAAA record.
+            mServingAddresses = mServer.getServedAddresses();
+            mMdnsResponder.setAddresses(mServingAddresses);
+            startMetricsPolling();
         } else {
             Log.d(LOGTAG, "Stopping SMB server");
+            mServingAddresses = Collections.emptyList();
+            stopMetricsPolling();
             mServer.stop();
-            if (mRunning && !isNetworkAvailable()) {
-                getSystemService(NotificationManager.class)
-                        .notify(NOTIFICATION_ID, getServiceNotification());
+            mMdnsResponder.stop();
+        }
+        updateUI();
+    }
+
+    /**
+     * @return All addresses if selected and supported, or the selected address followed by the other addresses of its
+     * interface, so that the interface is served over both IPv4 and IPv6. Must only be called if
+     * the network is available.
+     */
+    private List<InetAddress> getServingAddresses() {
+        if (ALL_ADDRESSES.equals(mSelectedIp) && JLANFileServer.supportsMultipleAddresses(this)) {
+            return mInetAddresses;
+        }
+        InetAddress bindAddress = mInetAddresses.get(0);
+        if (mSelectedIp != null) {
+            for (InetAddress addr : mInetAddresses) {
+                if (Objects.equals(addr.getHostAddress(), mSelectedIp)) {
+                    bindAddress = addr;
+                    break;
+                }
             }
-            unregisterNsdService();
         }
+
+        List<InetAddress> addresses = new ArrayList<>();
+        addresses.add(bindAddress);
+        try {
+            NetworkInterface intf = NetworkInterface.getByInetAddress(bindAddress);
+            if (intf != null) {
+                List<InetAddress> siblings = Collections.list(intf.getInetAddresses());
+                for (InetAddress addr : mInetAddresses) {
+                    if (!addr.equals(bindAddress) && siblings.contains(addr)) {
+                        addresses.add(addr);
+                    }
+                }
+            }
+        } catch (SocketException e) {
+            Log.w(LOGTAG, "Could not get interface of " + bindAddress, e);
+        }
+        return addresses;
+    }
+
+    private void startMetricsPolling() {
+        if (mLastPoll != null) {
+            return;
+        }
+        mLastPoll = mServer.getMetricsSnapshot();
+        mMetrics = mLastPoll;
+        ThreadUtils.postDelayedToUiThread(mMetricsPoller, METRICS_INTERVAL_MS);
+    }
+
+    private void stopMetricsPolling() {
+        ThreadUtils.removeCallbacksFromUiThread(mMetricsPoller);
+        mLastPoll = null;
+        mMetrics = null;
+        mReadRate = 0;
+        mWriteRate = 0;
+    }
+
+    private void pollMetrics() {
+        if (mServer == null || !mServer.running()) {
+            return;
+        }
+        IoMetrics.Snapshot previous = mLastPoll;
+        IoMetrics.Snapshot current = mServer.getMetricsSnapshot();
+        long elapsedNanos = Math.max(current.timestampNanos() - previous.timestampNanos(), 1);
+        mReadRate = (current.total().bytesRead() - previous.total().bytesRead()) *
+                1000000000L / elapsedNanos;
+        mWriteRate = (current.total().bytesWritten() - previous.total().bytesWritten()) *
+                1000000000L / elapsedNanos;
+        mLastPoll = current;
+        // Keep publishing the same snapshot while the server is idle, so the status doesn't
+        // change needlessly.
+        if (!current.hasSameCounters(mMetrics)) {
+            mMetrics = current;
+        }
+
         updateUI();
+        ThreadUtils.postDelayedToUiThread(mMetricsPoller, METRICS_INTERVAL_MS);
     }
 
     private void startNetworkTimeout() {
@@ -283,134 +441,24 @@ public class SmbService extends Service {
     }
 
     private void monitorNetwork() {
-        if (mNetCallback == null) {
-            final ConnectivityManager connMgr = getSystemService(ConnectivityManager.class);
-            mNetCallback = new ConnectivityManager.NetworkCallback() {
-                @Override
-                public void onAvailable(@NonNull Network network) {
-                    if (!mNetworks.contains(network)) {
-                        mNetworks.add(network);
-                    }
-                    updateNetworkAddresses();
-                }
-
-                @Override
-                public void onLost(@NonNull Network network) {
-                    mNetworks.remove(network);
-                    updateNetworkAddresses();
-                }
-
-                @Override
-                public void onLinkPropertiesChanged(@NonNull Network network, @NonNull LinkProperties linkProperties) {
-                    updateNetworkAddresses();
-                }
-            };
-            connMgr.registerNetworkCallback(
-                    new NetworkRequest.Builder().build(),
-                    mNetCallback
-            );
-        }
+        mAddressTracker.start();
     }
 
     private void unmonitorNetwork() {
-        if (mNetCallback != null) {
-            ConnectivityManager connMgr = getSystemService(ConnectivityManager.class);
-            connMgr.unregisterNetworkCallback(mNetCallback);
-            mNetCallback = null;
-            mNetworks.clear();
-            setInetAddresses(new ArrayList<>());
-        }
-    }
-
-    private void updateNetworkAddresses() {
-        final List<InetAddress> addresses = new ArrayList<>();
-        try {
-            for (NetworkInterface intf : Collections.list(NetworkInterface.getNetworkInterfaces())) {
-                if (intf.isUp() && !intf.isLoopback()) {
-                    for (InetAddress addr : Collections.list(intf.getInetAddresses())) {
-                        if (addr instanceof Inet4Address) {
-                            addresses.add(addr);
-                        }
-                    }
-                }
-            }
-        } catch (SocketException e) {
-            Log.e(LOGTAG, "Could not get network interfaces", e);
-        }
-        var sortedAddresses = addresses.stream()
-                .sorted(Comparator.comparing(InetAddress::getHostAddress))
-                .toList();
-        ThreadUtils.postToUiThread(() -> setInetAddresses(sortedAddresses));
-    }
-
-    private void registerNsdService() {
-        if (mNsdRegistrationListener == null) {
-            final String serviceName = getNsdServiceName(mServiceNameSuffix);
-
-            NsdServiceInfo serviceInfo = new NsdServiceInfo();
-            serviceInfo.setServiceName(serviceName);
-            serviceInfo.setServiceType("_microsoft-ds._tcp.");
-            serviceInfo.setPort(TcpipSMB.PORT);
-
-            mNsdRegistrationListener = new NsdManager.RegistrationListener() {
-                @Override
-                public void onServiceRegistered(NsdServiceInfo serviceInfo) {
-                    // Android auto-increments the service name on detecting a collision, but it
-                    // does so by appending a " (<digit>)" suffix (i.e. including a space) to the
-                    // service name, making the resulting name not plain-DNS-friendly.
-                    if (!serviceName.equals(serviceInfo.getServiceName())) {
-                        // We couldn't get our preferred service name, so try again with a suffix
-                        ThreadUtils.postToUiThread(() -> {
-                            mServiceNameSuffix++;
-                            unregisterNsdService();
-                            registerNsdService();
-                        });
-                    } else {
-                        setMDNSHostname(serviceName);
-                        updateUI();
-                    }
-                }
-
-                @Override
-                public void onRegistrationFailed(NsdServiceInfo serviceInfo, int errorCode) {
-                    setMDNSHostname(null);
-                    updateUI();
-                }
-
-                @Override
-                public void onServiceUnregistered(NsdServiceInfo serviceInfo) {
-                    setMDNSHostname(null);
-                    updateUI();
-                }
-
-                @Override
-                public void onUnregistrationFailed(NsdServiceInfo serviceInfo, int errorCode) {
-                    setMDNSHostname(null);
-                    updateUI();
-                }
-            };
-
-            NsdManager nsdManager = getSystemService(NsdManager.class);
-            nsdManager.registerService(
-                    serviceInfo, NsdManager.PROTOCOL_DNS_SD, mNsdRegistrationListener);
-        }
-    }
-
-    private void unregisterNsdService() {
-        if (mNsdRegistrationListener != null) {
-            NsdManager nsdManager = getSystemService(NsdManager.class);
-            nsdManager.unregisterService(mNsdRegistrationListener);
-            mNsdRegistrationListener = null;
-        }
+        mAddressTracker.stop();
+        setInetAddresses(new ArrayList<>());
     }
 
-    private String getNsdServiceName(int suffix) {
-        StringBuilder sb = new StringBuilder(getString(R.string.dns_name));
-        if (mServiceNameSuffix > INITIAL_SERVICE_NAME_SUFFIX) {
-            sb.append("-");
-            sb.append(suffix);
+    /**
+     * Windows doesn't accept IPv6 addresses in UNC paths, but supports them through the special
+     * <code>ipv6-literal.net</code> domain instead.
+     */
+    private static String getUNCHost(InetAddress addr) {
+        if (addr instanceof Inet6Address) {
+            return addr.getHostAddress().replace(':', '-').replace('%', 's') +
+                    IPV6_LITERAL_SUFFIX;
         }
-        return sb.toString();
+        return addr.getHostAddress();
     }
 
     private String getUNCFormattedMDNSAddress() {
@@ -430,40 +478,81 @@ public class SmbService extends Service {
         }
     }
 
+    /**
+     * Update the notification, unless its text hasn't changed.
+     */
+    private void updateNotification() {
+        if (!mRunning || mNotificationBuilder == null) {
+            return;
+        }
+        String text = getServiceNotificationText();
+        if (!text.equals(mNotificationText)) {
+            getSystemService(NotificationManager.class)
+                    .notify(NOTIFICATION_ID, getServiceNotification());
+        }
+    }
+
     private Notification getServiceNotification() {
-        Intent activityIntent = new Intent(this, MainActivity.class);
-        PendingIntent pendingIntent = PendingIntent.getActivity(getApplicationContext(), 0,
-                activityIntent, PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
-        NotificationCompat.Action stopAction = getStopAction();
-        return new NotificationCompat.Builder(this, NOTIFICATION_CHANNEL)
-                .setSmallIcon(R.drawable.ic_notification)
-                .setContentTitle(getString(R.string.app_name))
-                .setContentText(getServiceNotificationText())
-                .setContentIntent(pendingIntent)
-                .addAction(stopAction)
-                .setForegroundServiceBehavior(NotificationCompat.FOREGROUND_SERVICE_IMMEDIATE)
-                .setOngoing(true)
+        if (mNotificationBuilder == null) {
+            Intent activityIntent = new Intent(this, MainActivity.class);
+            PendingIntent pendingIntent = PendingIntent.getActivity(getApplicationContext(), 0,
+                    activityIntent,
+                    PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+            mNotificationBuilder = new NotificationCompat.Builder(this, NOTIFICATION_CHANNEL)
+                    .setSmallIcon(R.drawable.ic_notification)
+                    .setContentTitle(getString(R.string.app_name))
+                    .setContentIntent(pendingIntent)
+                    .setForegroundServiceBehavior(
+                            NotificationCompat.FOREGROUND_SERVICE_IMMEDIATE)
+                    .setOngoing(true);
+        }
+        mNotificationText = getServiceNotificationText();
+        return mNotificationBuilder
+                .setContentText(mNotificationText)
+                .clearActions()
+                .addAction(getStopAction())
                 .build();
     }
 
     private @Nullable NotificationCompat.Action getStopAction() {
-        NotificationCompat.Action action = null;
-        if (isNetworkAvailable()) {
+        if (!isNetworkAvailable()) {
+            return null;
+        }
+        if (mStopAction == null) {
             Intent stopIntent = new Intent(this, SmbService.class)
                     .setAction(ACTION_STOP);
             PendingIntent pendingIntent = PendingIntent.getService(getApplicationContext(), 0,
                     stopIntent, PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
-            action = new NotificationCompat.Action.Builder(R.drawable.ic_stop,
+            mStopAction = new NotificationCompat.Action.Builder(R.drawable.ic_stop,
                     getString(R.string.notification_action_stop), pendingIntent)
                     .build();
         }
-        return action;
+        return mStopAction;
     }
 
     private String getServiceNotificationText() {
-        return isNetworkAvailable() ?
-                getString(R.string.message_server_running) :
-                getString(R.string.message_server_waiting_network);
+        if (mStartupStage != null) {
+            return getString(R.string.message_server_starting);
+        } else if (!isNetworkAvailable()) {
+            return getString(R.string.message_server_waiting_network);
+        } else if (mReadRate > 0 || mWriteRate > 0) {
+            return getString(R.string.message_server_throughput,
+                    Formatter.formatShortFileSize(this, mReadRate),
+                    Formatter.formatShortFileSize(this, mWriteRate));
+        }
+        return getString(R.string.message_server_running);
+    }
+
+    /**
+     * Remove any port redirects left behind by a previous run that didn't get the chance to clean
+     * up, including ones that older versions added to PREROUTING directly.
+     * Must not be called while the service is running.
+     */
+    public static CompletableFuture<Void> resetRedirects() {
+        return RootShell.execute(() -> {
+            Iptables.setChainRules(REDIRECT_CHAIN, REDIRECT_RULES, false);
+            Iptables.setRules(REDIRECT_RULES, false);
+        });
     }
 
     /**
@@ -504,29 +593,23 @@ public class SmbService extends Service {
     }
 
     private void updateUI() {
+        mStatusPublisher.invalidate();
+    }
+
+    private Status getStatus() {
         boolean serverStarted = mServer != null && mServer.running();
         String netBiosAddress = UNC_PREFIX + getString(R.string.dns_name);
         String textualIp = "";
 
         if (isNetworkAvailable()) {
-            InetAddress ipToDisplay = mInetAddresses.get(0);
-            if (mSelectedIp != null) {
-                for (InetAddress addr : mInetAddresses) {
-                    if (Objects.equals(addr.getHostAddress(), mSelectedIp)) {
-                        ipToDisplay = addr;
-                        break;
-                    }
-                }
-            }
-            textualIp = UNC_PREFIX + ipToDisplay.getHostAddress();
+            List<InetAddress> addresses = serverStarted ? mServingAddresses : getServingAddresses();
+            textualIp = addresses.stream()
+                    .map(addr -> UNC_PREFIX + getUNCHost(addr))
+                    .collect(Collectors.joining(", "));
         }
 
-        Status status = new Status(mRunning, serverStarted,
-                getUNCFormattedMDNSAddress(), netBiosAddress, textualIp, mInetAddresses);
-
-        var liveData = SmbServiceStatusLiveData.get();
-        if (!status.equals(liveData.getValue())) {
-            liveData.postValue(status);
-        }
+        return new Status(mRunning, serverStarted, mStartupStage,
+                getUNCFormattedMDNSAddress(), netBiosAddress, textualIp, mInetAddresses,
+                serverStarted ? mMetrics : null, mReadRate, mWriteRate);
     }
 }
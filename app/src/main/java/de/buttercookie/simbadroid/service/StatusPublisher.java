@@ -0,0 +1,86 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package de.buttercookie.simbadroid.service;
+
+import android.os.SystemClock;
+
+import androidx.annotation.MainThread;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import de.buttercookie.simbadroid.util.ThreadUtils;
+
+/**
+ * Coalesces status changes and hands them to the listeners at most once per interval.
+ * <p>
+ * Invalidating the status is cheap and may happen from any thread. The status itself is only
+ * built on the UI thread once the interval has passed, and the listeners are only called if it
+ * actually differs from the one they saw last.
+ */
+class StatusPublisher<T> {
+    private final long mMinIntervalMs;
+    private final Supplier<T> mSource;
+    private final List<Consumer<T>> mListeners;
+    private final Runnable mPublishRunnable = this::publish;
+
+    // Only accessed on the UI thread.
+    private T mPublished;
+    private long mLastPublishMs;
+    private boolean mScheduled;
+
+    /**
+     * @param minIntervalMs The minimum time between two calls to the listeners.
+     * @param source Builds the current status, called on the UI thread.
+     * @param listeners Called on the UI thread with each new status.
+     */
+    @SafeVarargs
+    StatusPublisher(long minIntervalMs, Supplier<T> source, Consumer<T>... listeners) {
+        mMinIntervalMs = minIntervalMs;
+        mSource = source;
+        mListeners = List.of(listeners);
+    }
+
+    /**
+     * Schedule the status to be published, unless that has already happened.
+     */
+    void invalidate() {
+        if (!ThreadUtils.isOnUiThread()) {
+            ThreadUtils.postToUiThread(this::invalidate);
+            return;
+        }
+        if (mScheduled) {
+            return;
+        }
+        mScheduled = true;
+        long delay = mLastPublishMs + mMinIntervalMs - SystemClock.uptimeMillis();
+        ThreadUtils.postDelayedToUiThread(mPublishRunnable, Math.max(delay, 0));
+    }
+
+    /**
+     * Publish the current status right away, e.g. because the service is going away.
+     */
+    @MainThread
+    void flush() {
+        ThreadUtils.removeCallbacksFromUiThread(mPublishRunnable);
+        publish();
+    }
+
+    private void publish() {
+        ThreadUtils.assertOnUiThread();
+        mScheduled = false;
+        T status = mSource.get();
+        if (Objects.equals(status, mPublished)) {
+            return;
+        }
+        mPublished = status;
+        mLastPublishMs = SystemClock.uptimeMillis();
+        for (Consumer<T> listener : mListeners) {
+            listener.accept(status);
+        }
+    }
+}
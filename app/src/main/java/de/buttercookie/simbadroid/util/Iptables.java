@@ -22,21 +22,67 @@ package de.buttercookie.simbadroid.util;
 
 import android.util.Log;
 
-import com.topjohnwu.superuser.Shell;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class Iptables {
     private static final String LOGTAG = "Iptables";
+    private static final String SECTION_MARKER = "#@ ";
 
     private static String hasWait;
+    private static CommandRunner sRunner = RootShell::exec;
+    // Chains whose rules had to be added directly to their parent chains instead, keyed by
+    // sectionKey(), since that's decided separately for IPv4 and IPv6.
+    private static final Set<String> sDirectChains = new HashSet<>();
 
     private Iptables() {}
 
+    /**
+     * Runs a shell command with root privileges, see {@link RootShell#exec}.
+     */
+    @FunctionalInterface
+    public interface CommandRunner {
+        /**
+         * @return The command's output, or <code>null</code> if it failed.
+         */
+        @Nullable
+        List<String> run(String command);
+    }
+
+    /**
+     * A rule appended to a chain, written the way <code>iptables-save</code> prints it, so that
+     * it can be recognised in its output, e.g.
+     * <code>-p tcp -m tcp --dport 445 -j REDIRECT --to-ports 4450</code>.
+     */
+    public record Rule(boolean isIPv6, String table, String chain, String spec) {
+        String toSaveLine() {
+            return "-A " + chain + " " + spec;
+        }
+    }
+
+    @VisibleForTesting
+    static synchronized void setCommandRunner(CommandRunner runner) {
+        sRunner = runner;
+        hasWait = null;
+        sDirectChains.clear();
+    }
+
     private static boolean shellCommand(String command) {
-        Shell.Result result = Shell.cmd(command).exec();
-        for (String message : result.getOut()) {
-            Log.i(LOGTAG, message);
+        List<String> out = sRunner.run(command);
+        if (out != null) {
+            for (String message : out) {
+                Log.i(LOGTAG, message);
+            }
         }
-        return result.isSuccess();
+        return out != null;
     }
 
     private static String waitCmd() {
@@ -47,21 +93,227 @@ public class Iptables {
     }
 
     private static String testWait() {
-        String cmd = "";
-        if (shellCommand("iptables -w 0 --help > /dev/null")) {
-            cmd = "-w 2 ";
-        } else if (shellCommand("iptables -w --help > /dev/null")) { // Early versions do not have the timeout
-            cmd = "-w ";
+        // Probe for both variants in a single round trip. Early versions do not have the timeout.
+        List<String> out = sRunner.run("if iptables -w 0 --help > /dev/null; then echo timeout; " +
+                "elif iptables -w --help > /dev/null; then echo wait; fi");
+        if (out != null && out.contains("timeout")) {
+            return "-w 2 ";
+        } else if (out != null && out.contains("wait")) {
+            return "-w ";
         }
-        return cmd;
+        return "";
     }
 
     public static void iptables(boolean isIPv6, String table, String operation, String rule) {
         String command = isIPv6 ? "ip6tables" : "iptables";
-        boolean exists = Shell.cmd(command + " " + waitCmd() + "-t " + table + " -C " + rule).exec().isSuccess();
+        boolean exists = sRunner.run(command + " " + waitCmd() + "-t " + table + " -C " + rule) != null;
         if ((!exists && (operation.equals("N") || operation.equals("I") || operation.equals("A"))) ||
                 (exists && (operation.equals("D") || operation.equals("F") || operation.equals("X")))) {
             shellCommand(command + " " + waitCmd() + "-t " + table + " -" + operation + " " + rule);
         }
     }
+
+    /**
+     * Add or remove a set of rules in one go.
+     * <p>
+     * The current rules of all affected tables are read with a single call to
+     * <code>iptables-save</code>, and only the rules that actually need to change are then applied
+     * atomically through <code>iptables-restore --noflush</code>, so there's no need to probe
+     * and change each rule separately. If either isn't available, we fall back to changing the
+     * rules one by one.
+     *
+     * @param present Whether the rules should exist afterwards.
+     */
+    public static void setRules(List<Rule> rules, boolean present) {
+        ThreadUtils.assertNotOnUiThread();
+        Map<String, Set<String>> current = saveTables(rules);
+        if (current == null) {
+            Log.w(LOGTAG, "iptables-save failed, changing rules one by one");
+            setRulesSeparately(rules, present);
+            return;
+        }
+
+        // Restore input, one per IP version
+        Map<Boolean, Map<String, List<String>>> changes = new LinkedHashMap<>();
+        List<Rule> changed = new ArrayList<>();
+        for (Rule rule : rules) {
+            Set<String> existing = current.get(sectionKey(rule.isIPv6(), rule.table()));
+            boolean exists = existing != null && existing.contains(rule.toSaveLine());
+            if (exists != present) {
+                String line = present ? rule.toSaveLine() : "-D " + rule.chain() + " " + rule.spec();
+                changes.computeIfAbsent(rule.isIPv6(), k -> new LinkedHashMap<>())
+                        .computeIfAbsent(rule.table(), k -> new ArrayList<>())
+                        .add(line);
+                changed.add(rule);
+            }
+        }
+        if (changed.isEmpty()) {
+            return;
+        }
+
+        List<String> commands = new ArrayList<>();
+        for (Map.Entry<Boolean, Map<String, List<String>>> family : changes.entrySet()) {
+            StringBuilder input = new StringBuilder("printf '%s\\n'");
+            for (Map.Entry<String, List<String>> table : family.getValue().entrySet()) {
+                input.append(" '*").append(table.getKey()).append("'");
+                for (String line : table.getValue()) {
+                    input.append(" '").append(line).append("'");
+                }
+                input.append(" 'COMMIT'");
+            }
+            input.append(" | ").append(family.getKey() ? "ip6tables-restore" : "iptables-restore")
+                    .append(" --noflush");
+            commands.add(input.toString());
+        }
+        if (!shellCommand(String.join(" && ", commands))) {
+            Log.w(LOGTAG, "iptables-restore failed, changing rules one by one");
+            setRulesSeparately(changed, present);
+        }
+    }
+
+    /**
+     * Move a set of rules into a dedicated chain, which is jumped to from each rule's own chain.
+     * <p>
+     * Declaring a chain in <code>iptables-restore --noflush</code> input creates it if necessary
+     * and flushes it otherwise, so turning the rules on or off only ever takes a single shell call,
+     * no matter how many rules there are or which of them already exist. Rules left behind by a
+     * previous run that didn't get the chance to clean up are simply replaced.
+     * <p>
+     * IPv4 and IPv6 are updated independently within that call. If the rules of either can't be
+     * put into the chain, e.g. because the kernel lacks the IPv6 nat table, only those are added
+     * to their own chains directly instead, see {@link #setRules}.
+     *
+     * @param present Whether the chain should contain the rules afterwards or be empty.
+     */
+    public static synchronized void setChainRules(String chain, List<Rule> rules, boolean present) {
+        ThreadUtils.assertNotOnUiThread();
+        Map<Boolean, Map<String, List<Rule>>> tables = new LinkedHashMap<>();
+        for (Rule rule : rules) {
+            tables.computeIfAbsent(rule.isIPv6(), k -> new LinkedHashMap<>())
+                    .computeIfAbsent(rule.table(), k -> new ArrayList<>())
+                    .add(rule);
+        }
+
+        // Each IP version reports its success separately, and the call as a whole always
+        // succeeds, so that we can still tell which of them worked.
+        List<String> commands = new ArrayList<>();
+        for (Map.Entry<Boolean, Map<String, List<Rule>>> family : tables.entrySet()) {
+            commands.add("{ " + getChainCommand(family.getKey(), chain, family.getValue(), present) +
+                    " && echo '" + SECTION_MARKER + sectionKey(family.getKey(), chain) + "'; }");
+        }
+        commands.add("true");
+        List<String> out = sRunner.run(String.join("; ", commands));
+        if (out != null) {
+            for (String message : out) {
+                if (!message.startsWith(SECTION_MARKER)) {
+                    Log.i(LOGTAG, message);
+                }
+            }
+        }
+
+        for (Map.Entry<Boolean, Map<String, List<Rule>>> family : tables.entrySet()) {
+            String key = sectionKey(family.getKey(), chain);
+            List<Rule> familyRules = new ArrayList<>();
+            for (List<Rule> tableRules : family.getValue().values()) {
+                familyRules.addAll(tableRules);
+            }
+            if (out == null || !out.contains(SECTION_MARKER + key)) {
+                Log.w(LOGTAG, "Couldn't update chain " + key + ", changing rules directly");
+                setRules(familyRules, present);
+                if (present) {
+                    sDirectChains.add(key);
+                }
+            } else if (!present && sDirectChains.contains(key)) {
+                setRules(familyRules, false);
+            }
+            if (!present) {
+                sDirectChains.remove(key);
+            }
+        }
+    }
+
+    /**
+     * @return A command that fills or empties the chain in the given tables of one IP version and
+     * makes sure the chain is jumped to.
+     */
+    private static String getChainCommand(boolean isIPv6, String chain,
+                                          Map<String, List<Rule>> tables, boolean present) {
+        String command = isIPv6 ? "ip6tables" : "iptables";
+        StringBuilder input = new StringBuilder("printf '%s\\n'");
+        List<String> jumps = new ArrayList<>();
+        for (Map.Entry<String, List<Rule>> table : tables.entrySet()) {
+            input.append(" '*").append(table.getKey()).append("'")
+                    .append(" ':").append(chain).append(" - [0:0]'");
+            Set<String> parents = new HashSet<>();
+            for (Rule rule : table.getValue()) {
+                if (present) {
+                    input.append(" '-A ").append(chain).append(" ").append(rule.spec())
+                            .append("'");
+                }
+                if (parents.add(rule.chain())) {
+                    String jump = command + " " + waitCmd() + "-t " + table.getKey() + " %s " +
+                            rule.chain() + " -j " + chain;
+                    jumps.add("{ " + String.format(jump, "-C") + " || " +
+                            String.format(jump, "-A") + "; }");
+                }
+            }
+            input.append(" 'COMMIT'");
+        }
+        input.append(" | ").append(command).append("-restore --noflush");
+
+        List<String> commands = new ArrayList<>();
+        commands.add(input.toString());
+        if (present) {
+            commands.addAll(jumps);
+        }
+        return String.join(" && ", commands);
+    }
+
+    private static void setRulesSeparately(List<Rule> rules, boolean present) {
+        for (Rule rule : rules) {
+            iptables(rule.isIPv6(), rule.table(), present ? "A" : "D",
+                    rule.chain() + " " + rule.spec());
+        }
+    }
+
+    /**
+     * @return The rules of every table used by the given rules, keyed by {@link #sectionKey}, or
+     * <code>null</code> if they couldn't be read.
+     */
+    @Nullable
+    private static Map<String, Set<String>> saveTables(List<Rule> rules) {
+        Set<String> sections = new HashSet<>();
+        StringBuilder command = new StringBuilder();
+        for (Rule rule : rules) {
+            String key = sectionKey(rule.isIPv6(), rule.table());
+            if (sections.add(key)) {
+                if (command.length() > 0) {
+                    command.append(" && ");
+                }
+                command.append("echo '").append(SECTION_MARKER).append(key).append("' && ")
+                        .append(rule.isIPv6() ? "ip6tables-save" : "iptables-save")
+                        .append(" -t ").append(rule.table());
+            }
+        }
+
+        List<String> out = sRunner.run(command.toString());
+        if (out == null) {
+            return null;
+        }
+        Map<String, Set<String>> tables = new HashMap<>();
+        Set<String> table = null;
+        for (String line : out) {
+            if (line.startsWith(SECTION_MARKER)) {
+                table = new HashSet<>();
+                tables.put(line.substring(SECTION_MARKER.length()), table);
+            } else if (table != null && line.startsWith("-A ")) {
+                table.add(line.trim());
+            }
+        }
+        return tables;
+    }
+
+    private static String sectionKey(boolean isIPv6, String table) {
+        return (isIPv6 ? "ip6 " : "ip ") + table;
+    }
 }
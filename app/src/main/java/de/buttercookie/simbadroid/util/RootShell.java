@@ -0,0 +1,69 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package de.buttercookie.simbadroid.util;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.topjohnwu.superuser.Shell;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+/**
+ * Runs privileged commands without blocking the calling thread.
+ * <p>
+ * All work is done in order on a single thread using libsu's main shell, which is kept open
+ * between commands, so only the very first command has to wait for su. Several commands can be
+ * run in one go, in which case their output is collected in a single round trip.
+ */
+public final class RootShell {
+    private static final String LOGTAG = "RootShell";
+
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, LOGTAG);
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private RootShell() {}
+
+    /**
+     * Run a task on the root shell thread, after all previously submitted ones have finished.
+     * The task may use {@link #exec} to run commands.
+     */
+    public static <T> CompletableFuture<T> submit(Supplier<T> task) {
+        return CompletableFuture.supplyAsync(task, sExecutor).whenComplete((result, e) -> {
+            if (e != null) {
+                Log.e(LOGTAG, "Error running privileged task", e);
+            }
+        });
+    }
+
+    /**
+     * @see #submit(Supplier)
+     */
+    public static CompletableFuture<Void> execute(Runnable task) {
+        return submit(() -> {
+            task.run();
+            return null;
+        });
+    }
+
+    /**
+     * Run the given commands one after another and wait for them to finish.
+     *
+     * @return The combined output of the commands, or <code>null</code> if the last one failed.
+     */
+    @Nullable
+    public static List<String> exec(String... commands) {
+        Shell.Result result = Shell.cmd(commands).exec();
+        return result.isSuccess() ? result.getOut() : null;
+    }
+}
@@ -11,21 +11,28 @@ import android.annotation.SuppressLint;
 import android.content.Context;
 import android.os.Build;
 import android.os.Environment;
+import android.os.storage.StorageManager;
+import android.os.storage.StorageVolume;
 import android.text.TextUtils;
 import android.util.Log;
 
 import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
 import androidx.core.content.ContextCompat;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.Locale;
+import java.util.Objects;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class SdCard {
@@ -99,8 +106,20 @@ public class SdCard {
     private static final Pattern fsTypePattern =
             Pattern.compile(".*(fat|msdos|ntfs|ext[34]|fuse|sdcard|esdfs).*");
 
+    private static final String MOUNTS_FILE = "/proc/mounts";
+
+    // The result of the last full search and the mount table it was based on, guarded by
+    // 'SdCard.class'. As long as nothing has been mounted or unmounted since, the result still
+    // stands.
+    private static String sCachedMounts;
+    private static String sCachedKnownFile;
+    private static File sCachedPath;
+
     /**
      * Find path to removable SD card.
+     * <p>
+     * On newer Android versions, the storage volumes reported by the system are used. Otherwise,
+     * the result of the full search below is remembered until the mount table changes.
      *
      * @param knownFile In some scenarios we can expect to find a specified file or folder on
      *                  SD cards designed to work with this app. If so, set <code>knownFile</code>
@@ -108,12 +127,73 @@ public class SdCard {
      * @return A <code>File</code> representing the removable SD card, if one could be found and
      *         detected.
      */
-    @SuppressLint("ObsoleteSdkInt")
     @Nullable public static File findSdCardPath(Context context, @Nullable String knownFile) {
-        String[] mountFields;
-        BufferedReader bufferedReader = null;
-        String lineRead;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            File volume = findRemovableVolume(context);
+            if (volume != null) {
+                return volume;
+            }
+        }
+
+        String mounts = readMounts();
+        synchronized (SdCard.class) {
+            if (mounts != null && mounts.equals(sCachedMounts) &&
+                    Objects.equals(knownFile, sCachedKnownFile)) {
+                Log("Mount table unchanged, using cached result " + sCachedPath);
+                return sCachedPath;
+            }
+        }
 
+        File path = searchSdCardPath(context, knownFile, mounts);
+        synchronized (SdCard.class) {
+            sCachedMounts = mounts;
+            sCachedKnownFile = knownFile;
+            sCachedPath = path;
+        }
+        return path;
+    }
+
+    @RequiresApi(Build.VERSION_CODES.R)
+    @Nullable
+    private static File findRemovableVolume(Context context) {
+        StorageManager storageManager = context.getSystemService(StorageManager.class);
+        for (StorageVolume volume : storageManager.getStorageVolumes()) {
+            String state = volume.getState();
+            if (volume.isRemovable() && !volume.isEmulated() &&
+                    (Environment.MEDIA_MOUNTED.equals(state) ||
+                            Environment.MEDIA_MOUNTED_READ_ONLY.equals(state))) {
+                File dir = volume.getDirectory();
+                if (dir != null && dir.canExecute()) {
+                    Log.i(TAG, dir.getPath() + " is a removable storage volume");
+                    return dir;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The whole mount table, or <code>null</code> if it couldn't be read.
+     */
+    @Nullable
+    private static String readMounts() {
+        try {
+            // Note: Despite restricting some access to /proc (http://stackoverflow.com/a/38728738/423105),
+            // Android 7.0 does *not* block access to /proc/mounts, according to our test on George's Alcatel A30 GSM.
+            return new String(Files.readAllBytes(Paths.get(MOUNTS_FILE)), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Search for the removable SD card by looking at all sorts of likely paths.
+     *
+     * @param mounts The contents of the mount table, if available.
+     */
+    @SuppressLint("ObsoleteSdkInt")
+    @Nullable private static File searchSdCardPath(Context context, @Nullable String knownFile,
+                                                  @Nullable String mounts) {
         /* Possible SD card paths */
         LinkedHashSet<File> candidatePaths = new LinkedHashSet<>();
 
@@ -146,47 +226,8 @@ public class SdCard {
 
         // Get listing of mounted devices with their properties.
         ArrayList<File> mountedPaths = new ArrayList<>();
-        try {
-            // Note: Despite restricting some access to /proc (http://stackoverflow.com/a/38728738/423105),
-            // Android 7.0 does *not* block access to /proc/mounts, according to our test on George's Alcatel A30 GSM.
-            bufferedReader = new BufferedReader(new FileReader("/proc/mounts"));
-
-            // Iterate over each line of the mounts listing.
-            while ((lineRead = bufferedReader.readLine()) != null) {
-                Log("\nMounts line: " + lineRead);
-                mountFields = lineRead.split(" ");
-
-                // columns: device, mountpoint, fs type, options... Example:
-                // /dev/block/vold/179:97 /storage/sdcard1 vfat rw,dirsync,nosuid,nodev,noexec,relatime,uid=1000,gid=1015,fmask=0002,dmask=0002,allow_utime=0020,codepage=cp437,iocharset=iso8859-1,shortname=mixed,utf8,errors=remount-ro 0 0
-                String device = mountFields[0], path = mountFields[1], fsType = mountFields[2];
-
-                // The device, path, and fs type must conform to expected patterns.
-                if (!(devicePattern.matcher(device).matches() &&
-                        pathPattern.matcher(path).matches() &&
-                        fsTypePattern.matcher(fsType).matches()) ||
-                        // mtdblock is internal, I'm told.
-                        device.contains("mtdblock") ||
-                        // Check for disqualifying patterns in the path.
-                        pathAntiPattern.matcher(path).matches()) {
-                    // If this mounts line fails our tests, skip it.
-                    continue;
-                }
-
-                // TODO maybe: check options to make sure it's mounted RW?
-                // The answer at http://stackoverflow.com/a/13648873/423105 does.
-                // But it hasn't seemed to be necessary so far in my testing.
-
-                // This line met the criteria so far, so add it to candidate list.
-                addPath(path, null, mountedPaths);
-            }
-        } catch (IOException ignored) {
-        } finally {
-            if (bufferedReader != null) {
-                try {
-                    bufferedReader.close();
-                } catch (IOException ignored) {
-                }
-            }
+        if (mounts != null) {
+            addMountedPaths(mounts, mountedPaths);
         }
 
         // Append the paths from mount table to candidate list, in reverse order.
@@ -309,6 +350,72 @@ public class SdCard {
         return null;
     }
 
+    /**
+     * Add the mount points from the mount table that look like they could be an SD card.
+     * <p>
+     * The table is scanned in a single pass without splitting it up, and only the paths of
+     * matching lines are copied out of it.
+     */
+    private static void addMountedPaths(String mounts, Collection<File> paths) {
+        Matcher deviceMatcher = devicePattern.matcher("");
+        Matcher pathMatcher = pathPattern.matcher("");
+        Matcher pathAntiMatcher = pathAntiPattern.matcher("");
+        Matcher fsTypeMatcher = fsTypePattern.matcher("");
+
+        int lineStart = 0;
+        while (lineStart < mounts.length()) {
+            int lineEnd = mounts.indexOf('\n', lineStart);
+            if (lineEnd < 0) {
+                lineEnd = mounts.length();
+            }
+
+            // columns: device, mountpoint, fs type, options... Example:
+            // /dev/block/vold/179:97 /storage/sdcard1 vfat rw,dirsync,nosuid,nodev,noexec,relatime,uid=1000,gid=1015,fmask=0002,dmask=0002,allow_utime=0020,codepage=cp437,iocharset=iso8859-1,shortname=mixed,utf8,errors=remount-ro 0 0
+            int deviceEnd = indexOf(mounts, ' ', lineStart, lineEnd);
+            int pathEnd = indexOf(mounts, ' ', deviceEnd + 1, lineEnd);
+            int fsTypeEnd = indexOf(mounts, ' ', pathEnd + 1, lineEnd);
+            if (LOGGING) {
+                Log("\nMounts line: " + mounts.substring(lineStart, lineEnd));
+            }
+
+            // The device, path, and fs type must conform to expected patterns.
+            if (fsTypeEnd >= 0 &&
+                    fsTypeMatcher.reset(CharBuffer.wrap(mounts, pathEnd + 1, fsTypeEnd)).matches() &&
+                    deviceMatcher.reset(CharBuffer.wrap(mounts, lineStart, deviceEnd)).matches() &&
+                    // mtdblock is internal, I'm told.
+                    indexOf(mounts, "mtdblock", lineStart, deviceEnd) < 0) {
+                CharBuffer path = CharBuffer.wrap(mounts, deviceEnd + 1, pathEnd);
+                if (pathMatcher.reset(path).matches() &&
+                        // Check for disqualifying patterns in the path.
+                        !pathAntiMatcher.reset(path).matches()) {
+                    // TODO maybe: check options to make sure it's mounted RW?
+                    // The answer at http://stackoverflow.com/a/13648873/423105 does.
+                    // But it hasn't seemed to be necessary so far in my testing.
+
+                    // This line met the criteria so far, so add it to candidate list.
+                    addPath(path.toString(), null, paths);
+                }
+            }
+            lineStart = lineEnd + 1;
+        }
+    }
+
+    /**
+     * @return The index of <code>c</code> within <code>[from, to)</code>, or -1.
+     */
+    private static int indexOf(String str, char c, int from, int to) {
+        if (from < 0) {
+            return -1;
+        }
+        int i = str.indexOf(c, from);
+        return i < to ? i : -1;
+    }
+
+    private static int indexOf(String str, String s, int from, int to) {
+        int i = str.indexOf(s, from);
+        return i >= 0 && i + s.length() <= to ? i : -1;
+    }
+
     /** Add each path to the collection. */
     private static void addCommonPaths(LinkedHashSet<File> candidatePaths) {
         for (String path : SdCard.commonPaths) {
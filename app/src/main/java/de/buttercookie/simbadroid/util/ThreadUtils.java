@@ -25,7 +25,9 @@ public final class ThreadUtils {
         THROW,
     }
 
-    private static final Thread sUiThread = Looper.getMainLooper().getThread();
+    // There's no main looper in unit tests running on the host.
+    private static final Thread sUiThread = Looper.getMainLooper() != null ?
+            Looper.getMainLooper().getThread() : null;
     private static final Handler sUiHandler = new Handler(Looper.getMainLooper());
 
     private static volatile Thread sBackgroundThread;
@@ -116,6 +118,11 @@ public final class ThreadUtils {
     private static void assertOnThreadComparison(final Thread expectedThread,
                                                  final AssertBehavior behavior,
                                                  final boolean expected) {
+        if (expectedThread == null) {
+            // Unit tests running on the host don't have a UI thread.
+            return;
+        }
+
         final Thread currentThread = Thread.currentThread();
         final long currentThreadId = currentThread.getId();
         final long expectedThreadId = expectedThread.getId();
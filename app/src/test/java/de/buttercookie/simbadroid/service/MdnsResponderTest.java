@@ -0,0 +1,123 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package de.buttercookie.simbadroid.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.jmdns.JmDNS;
+import javax.jmdns.ServiceInfo;
+import javax.jmdns.impl.JmDNSImpl;
+
+/**
+ * Runs the responder against real JmDNS instances on the loopback interface.
+ */
+public class MdnsResponderTest {
+    private static final String SERVICE_TYPE = "_microsoft-ds._tcp.local.";
+    private static final String NAME = "simbadroid-test";
+    private static final int PORT = 4450;
+    private static final long RESOLVE_TIMEOUT_MS = 5000;
+    // Probing only takes about three seconds on the loopback interface.
+    private static final long PROBE_TIMEOUT_MS = 5000;
+    private static final long PROBE_POLL_INTERVAL_MS = 50;
+
+    private final InetAddress mLoopback = InetAddress.getLoopbackAddress();
+    private final List<String> mNames = new ArrayList<>();
+    private final List<JmDNS> mOthers = new ArrayList<>();
+    private MdnsResponder mResponder;
+
+    @Before
+    public void setUp() {
+        // Run everything on the test thread, so that setAddresses() only returns once done.
+        mResponder = new MdnsResponder(NAME, PORT, mNames::add, Runnable::run, Runnable::run,
+                PROBE_TIMEOUT_MS);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        // Closing waits for the goodbye packets to be sent, so close everything in parallel.
+        List<Thread> closers = new ArrayList<>();
+        for (JmDNS jmDNS : mOthers) {
+            Thread closer = new Thread(() -> {
+                try {
+                    jmDNS.close();
+                } catch (IOException ignored) {}
+            });
+            closer.start();
+            closers.add(closer);
+        }
+        mResponder.stop();
+        for (Thread closer : closers) {
+            closer.join();
+        }
+    }
+
+    @Test
+    public void advertisesHostnameAndService() throws Exception {
+        mResponder.setAddresses(List.of(mLoopback));
+        assertEquals(List.of(NAME), mNames);
+
+        ServiceInfo info = resolve(NAME);
+        assertNotNull(info);
+        assertEquals(PORT, info.getPort());
+        assertEquals(NAME + ".local.", info.getServer());
+        assertArrayEquals(new InetAddress[]{mLoopback}, info.getInet4Addresses());
+    }
+
+    @Test
+    public void addsSuffixOnConflict() throws Exception {
+        // Same service name, but a different host and port, so the records really conflict.
+        JmDNS squatter = startJmDNS("squatter");
+        ServiceInfo taken = ServiceInfo.create(SERVICE_TYPE, NAME, 1234, "");
+        squatter.registerService(taken);
+        MdnsResponder.waitForProbing(squatter, taken, PROBE_TIMEOUT_MS);
+
+        mResponder.setAddresses(List.of(mLoopback));
+        assertEquals(List.of(NAME + "-2"), mNames);
+
+        ServiceInfo info = resolve(NAME + "-2");
+        assertNotNull(info);
+        assertEquals(PORT, info.getPort());
+        assertEquals(NAME + "-2.local.", info.getServer());
+    }
+
+    @Test
+    public void reportsNoNameWhenStopped() {
+        mResponder.setAddresses(List.of(mLoopback));
+        mResponder.stop();
+
+        assertEquals(NAME, mNames.get(0));
+        assertNull(mNames.get(1));
+    }
+
+    private ServiceInfo resolve(String name) throws Exception {
+        JmDNS client = startJmDNS("client");
+        return client.getServiceInfo(SERVICE_TYPE, name, RESOLVE_TIMEOUT_MS);
+    }
+
+    /**
+     * Start a JmDNS instance and wait until it has claimed its hostname, as it doesn't send any
+     * queries before that.
+     */
+    private JmDNS startJmDNS(String hostName) throws Exception {
+        JmDNS jmDNS = JmDNS.create(mLoopback, hostName);
+        mOthers.add(jmDNS);
+        while (((JmDNSImpl) jmDNS).isProbing()) {
+            Thread.sleep(PROBE_POLL_INTERVAL_MS);
+        }
+        return jmDNS;
+    }
+}
@@ -0,0 +1,215 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package de.buttercookie.simbadroid.util;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class IptablesTest {
+    private static final String SMB_SPEC = "-p tcp -m tcp --dport 445 -j REDIRECT --to-ports 4450";
+    private static final String NETBIOS_SPEC =
+            "-p udp -m udp --dport 137 -j REDIRECT --to-ports 1137";
+
+    private static final Iptables.Rule SMB =
+            new Iptables.Rule(false, "nat", "PREROUTING", SMB_SPEC);
+    private static final Iptables.Rule NETBIOS =
+            new Iptables.Rule(false, "nat", "PREROUTING", NETBIOS_SPEC);
+    private static final Iptables.Rule SMB_V6 =
+            new Iptables.Rule(true, "nat", "PREROUTING", SMB_SPEC);
+    private static final List<Iptables.Rule> RULES = List.of(SMB, NETBIOS, SMB_V6);
+
+    private static final String CHAIN = "SIMBADROID";
+    private static final String UPDATE_CHAIN_V4 = "printf '%s\\n' '*nat' ':SIMBADROID - [0:0]' " +
+            "'-A SIMBADROID " + SMB_SPEC + "' '-A SIMBADROID " + NETBIOS_SPEC + "' 'COMMIT' | " +
+            "iptables-restore --noflush && " +
+            "{ iptables -w 2 -t nat -C PREROUTING -j SIMBADROID || " +
+            "iptables -w 2 -t nat -A PREROUTING -j SIMBADROID; }";
+    private static final String UPDATE_CHAIN_V6 = "printf '%s\\n' '*nat' ':SIMBADROID - [0:0]' " +
+            "'-A SIMBADROID " + SMB_SPEC + "' 'COMMIT' | ip6tables-restore --noflush && " +
+            "{ ip6tables -w 2 -t nat -C PREROUTING -j SIMBADROID || " +
+            "ip6tables -w 2 -t nat -A PREROUTING -j SIMBADROID; }";
+    private static final String UPDATE_CHAIN = "{ " + UPDATE_CHAIN_V4 +
+            " && echo '#@ ip SIMBADROID'; }; { " + UPDATE_CHAIN_V6 +
+            " && echo '#@ ip6 SIMBADROID'; }; true";
+    private static final String FLUSH_CHAIN = "{ printf '%s\\n' '*nat' ':SIMBADROID - [0:0]' " +
+            "'COMMIT' | iptables-restore --noflush && echo '#@ ip SIMBADROID'; }; " +
+            "{ printf '%s\\n' '*nat' ':SIMBADROID - [0:0]' 'COMMIT' | " +
+            "ip6tables-restore --noflush && echo '#@ ip6 SIMBADROID'; }; true";
+
+    private static final String SAVE_V4 = "echo '#@ ip nat' && iptables-save -t nat";
+    private static final String SAVE_V6 = "echo '#@ ip6 nat' && ip6tables-save -t nat";
+    private static final String SAVE = SAVE_V4 + " && " + SAVE_V6;
+
+    private FakeShell mShell;
+
+    @Before
+    public void setUp() {
+        mShell = new FakeShell();
+        Iptables.setCommandRunner(mShell);
+    }
+
+    @Test
+    public void setRules_addsOnlyMissingRules() {
+        mShell.mSaveOutput.addAll(List.of("#@ ip nat", "*nat",
+                ":PREROUTING ACCEPT [0:0]", "-A PREROUTING " + SMB_SPEC, "COMMIT",
+                "#@ ip6 nat", "*nat", ":PREROUTING ACCEPT [0:0]", "COMMIT"));
+
+        Iptables.setRules(RULES, true);
+
+        assertEquals(List.of(SAVE,
+                "printf '%s\\n' '*nat' '-A PREROUTING " + NETBIOS_SPEC + "' 'COMMIT' | " +
+                        "iptables-restore --noflush && " +
+                        "printf '%s\\n' '*nat' '-A PREROUTING " + SMB_SPEC + "' 'COMMIT' | " +
+                        "ip6tables-restore --noflush"),
+                mShell.getCommands());
+    }
+
+    @Test
+    public void setRules_removesOnlyExistingRules() {
+        mShell.mSaveOutput.addAll(List.of("#@ ip nat", "*nat",
+                "-A PREROUTING " + SMB_SPEC, "-A OUTPUT " + NETBIOS_SPEC, "COMMIT",
+                "#@ ip6 nat", "*nat", "COMMIT"));
+
+        Iptables.setRules(RULES, false);
+
+        assertEquals(List.of(SAVE,
+                "printf '%s\\n' '*nat' '-D PREROUTING " + SMB_SPEC + "' 'COMMIT' | " +
+                        "iptables-restore --noflush"),
+                mShell.getCommands());
+    }
+
+    @Test
+    public void setRules_doesNothingIfUpToDate() {
+        mShell.mSaveOutput.addAll(List.of("#@ ip nat", "*nat",
+                "-A PREROUTING " + SMB_SPEC, "-A PREROUTING " + NETBIOS_SPEC, "COMMIT",
+                "#@ ip6 nat", "*nat", "-A PREROUTING " + SMB_SPEC, "COMMIT"));
+
+        Iptables.setRules(RULES, true);
+
+        assertEquals(List.of(SAVE), mShell.getCommands());
+    }
+
+    @Test
+    public void setRules_changesRulesSeparatelyIfSaveFails() {
+        mShell.mFailing.add("-save");
+
+        Iptables.setRules(List.of(SMB, SMB_V6), true);
+
+        assertEquals(List.of(SAVE,
+                "iptables -w 2 -t nat -C PREROUTING " + SMB_SPEC,
+                "iptables -w 2 -t nat -A PREROUTING " + SMB_SPEC,
+                "ip6tables -w 2 -t nat -C PREROUTING " + SMB_SPEC,
+                "ip6tables -w 2 -t nat -A PREROUTING " + SMB_SPEC),
+                mShell.getCommands());
+    }
+
+    @Test
+    public void setRules_changesOnlyChangedRulesSeparatelyIfRestoreFails() {
+        mShell.mSaveOutput.addAll(List.of("#@ ip nat", "*nat",
+                "-A PREROUTING " + SMB_SPEC, "COMMIT", "#@ ip6 nat", "*nat", "COMMIT"));
+        mShell.mFailing.add("-restore");
+
+        Iptables.setRules(List.of(SMB, NETBIOS), true);
+
+        assertEquals(List.of(SAVE_V4,
+                "printf '%s\\n' '*nat' '-A PREROUTING " + NETBIOS_SPEC + "' 'COMMIT' | " +
+                        "iptables-restore --noflush",
+                "iptables -w 2 -t nat -C PREROUTING " + NETBIOS_SPEC,
+                "iptables -w 2 -t nat -A PREROUTING " + NETBIOS_SPEC),
+                mShell.getCommands());
+    }
+
+    @Test
+    public void setChainRules_updatesAllFamiliesInOneCall() {
+        mShell.mChainOutput.addAll(List.of("#@ ip SIMBADROID", "#@ ip6 SIMBADROID"));
+
+        Iptables.setChainRules(CHAIN, RULES, true);
+        Iptables.setChainRules(CHAIN, RULES, false);
+
+        assertEquals(List.of(UPDATE_CHAIN, FLUSH_CHAIN), mShell.getCommands());
+    }
+
+    @Test
+    public void setChainRules_changesRulesDirectlyOnlyForFailedFamily() {
+        mShell.mChainOutput.add("#@ ip SIMBADROID");
+        mShell.mSaveOutput.addAll(List.of("#@ ip6 nat", "*nat", "COMMIT"));
+
+        Iptables.setChainRules(CHAIN, RULES, true);
+
+        assertEquals(List.of(UPDATE_CHAIN, SAVE_V6,
+                "printf '%s\\n' '*nat' '-A PREROUTING " + SMB_SPEC + "' 'COMMIT' | " +
+                        "ip6tables-restore --noflush"),
+                mShell.getCommands());
+    }
+
+    @Test
+    public void setChainRules_removesRulesAddedDirectly() {
+        mShell.mChainOutput.add("#@ ip SIMBADROID");
+        Iptables.setChainRules(CHAIN, RULES, true);
+        mShell.getCommands().clear();
+
+        // The chain can now be flushed for both, but the IPv6 rules still need to be removed.
+        mShell.mChainOutput.add("#@ ip6 SIMBADROID");
+        mShell.mSaveOutput.addAll(List.of("#@ ip6 nat", "*nat",
+                "-A PREROUTING " + SMB_SPEC, "COMMIT"));
+        Iptables.setChainRules(CHAIN, RULES, false);
+
+        assertEquals(List.of(FLUSH_CHAIN, SAVE_V6,
+                "printf '%s\\n' '*nat' '-D PREROUTING " + SMB_SPEC + "' 'COMMIT' | " +
+                        "ip6tables-restore --noflush"),
+                mShell.getCommands());
+    }
+
+    /**
+     * Pretends that no rule exists when probed for individually, and that everything else
+     * succeeds, unless it matches one of the failing patterns. Chain updates report success for
+     * the IP versions listed in the chain output.
+     */
+    private static class FakeShell implements Iptables.CommandRunner {
+        private static final String WAIT_PROBE = "if iptables -w 0 --help";
+
+        final List<String> mSaveOutput = new ArrayList<>();
+        final List<String> mChainOutput = new ArrayList<>();
+        final Set<String> mFailing = new HashSet<>();
+        private final List<String> mCommands = new ArrayList<>();
+
+        @Override
+        public List<String> run(String command) {
+            if (command.startsWith(WAIT_PROBE)) {
+                return List.of("timeout");
+            }
+            mCommands.add(command);
+            for (String pattern : mFailing) {
+                if (command.contains(pattern)) {
+                    return null;
+                }
+            }
+            if (command.endsWith("; true")) {
+                return mChainOutput;
+            }
+            if (command.contains("-save")) {
+                return mSaveOutput;
+            }
+            if (command.contains(" -C ")) {
+                return null;
+            }
+            return List.of();
+        }
+
+        /**
+         * @return All commands that have been run, except for the probe for the wait option.
+         */
+        List<String> getCommands() {
+            return mCommands;
+        }
+    }
+}
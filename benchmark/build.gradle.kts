@@ -0,0 +1,50 @@
+plugins {
+    `java-library`
+    alias(libs.plugins.jmh)
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_17
+    targetCompatibility = JavaVersion.VERSION_17
+}
+
+// The server is compiled straight from the app sources, so the benchmarks always measure the
+// current code. Everything that needs an Android Context stays out, and the few framework
+// classes the server uses otherwise are replaced by the stand-ins in src/main/java.
+sourceSets {
+    main {
+        java {
+            srcDir("../app/src/main/java")
+            include("android/**")
+            include("de/buttercookie/simbadroid/jlan/**")
+            exclude("de/buttercookie/simbadroid/jlan/JLANFileServer.java")
+            exclude("de/buttercookie/simbadroid/jlan/Android*.java")
+        }
+    }
+}
+
+dependencies {
+    implementation(libs.jfileserver) {
+        exclude(group = "com.hazelcast", module = "hazelcast")
+        exclude(group = "org.bouncycastle", module = "bcprov-jdk15on")
+    }
+    implementation(libs.bouncycastle.bcprov)
+    implementation(libs.guava)
+    compileOnly(libs.androidx.annotation)
+    // SMBv1 capable client for the end-to-end benchmarks
+    jmhImplementation(libs.jcifs)
+}
+
+jmh {
+    jmhVersion = libs.versions.jmh
+    // Keep these fixed, so that results from different commits can be compared.
+    fork = 1
+    warmupIterations = 3
+    warmup = "2s"
+    iterations = 5
+    timeOnIteration = "2s"
+    resultFormat = "JSON"
+    profilers = listOf("gc")
+    // Run a subset with e.g. -PjmhIncludes=SmbServerBenchmark
+    providers.gradleProperty("jmhIncludes").orNull?.let { includes = listOf(it) }
+}
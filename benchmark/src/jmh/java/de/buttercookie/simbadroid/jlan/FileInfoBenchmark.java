@@ -0,0 +1,71 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package de.buttercookie.simbadroid.jlan;
+
+import org.filesys.server.filesys.FileInfo;
+import org.filesys.server.filesys.FileStatus;
+import org.filesys.server.filesys.SearchFlags;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Metadata lookups for an existing file and for a file clients probe for in every folder, but
+ * which usually doesn't exist.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FileInfoBenchmark {
+    private static final String EXISTING_FILE = "\\dir\\file.txt";
+    private static final String MISSING_FILE = "\\dir\\desktop.ini";
+
+    @Param({"true", "false"})
+    public boolean cached;
+
+    private ShareFixture mShare;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        mShare = new ShareFixture(cached);
+        mShare.createFile(EXISTING_FILE, 4096);
+        // The junk file filter needs a listing of the directory.
+        mShare.getDriver().startSearch(mShare.getSession(), mShare.getTree(), "\\dir\\*", 0,
+                EnumSet.noneOf(SearchFlags.class)).closeSearch();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        mShare.close();
+    }
+
+    @Benchmark
+    public FileInfo getFileInformation() throws Exception {
+        return mShare.getDriver().getFileInformation(mShare.getSession(), mShare.getTree(),
+                EXISTING_FILE);
+    }
+
+    @Benchmark
+    public FileInfo getMissingFileInformation() throws Exception {
+        return mShare.getDriver().getFileInformation(mShare.getSession(), mShare.getTree(),
+                MISSING_FILE);
+    }
+
+    @Benchmark
+    public FileStatus fileExists() {
+        return mShare.getDriver().fileExists(mShare.getSession(), mShare.getTree(),
+                EXISTING_FILE);
+    }
+}
@@ -0,0 +1,91 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package de.buttercookie.simbadroid.jlan;
+
+import org.filesys.server.filesys.NetworkFile;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opening, sequentially reading and writing and closing a file, with the request sizes of
+ * typical SMB clients.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FileIoBenchmark {
+    private static final String READ_FILE = "\\read.bin";
+    private static final String WRITE_FILE = "\\write.bin";
+    private static final int FILE_SIZE = 8 * 1024 * 1024;
+
+    @Param({"true", "false"})
+    public boolean cached;
+
+    @Param({"4096", "61440"})
+    public int requestSize;
+
+    private ShareFixture mShare;
+    private byte[] mBuffer;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        mShare = new ShareFixture(cached);
+        mShare.createFile(READ_FILE, FILE_SIZE);
+        mBuffer = new byte[requestSize];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        mShare.close();
+    }
+
+    @Benchmark
+    public void openClose() throws Exception {
+        mShare.closeFile(mShare.openFile(READ_FILE, false));
+    }
+
+    @Benchmark
+    public long sequentialRead() throws Exception {
+        SimbaDiskDriver driver = mShare.getDriver();
+        NetworkFile file = mShare.openFile(READ_FILE, false);
+        long total = 0;
+        try {
+            int read;
+            while ((read = driver.readFile(mShare.getSession(), mShare.getTree(), file, mBuffer,
+                    0, requestSize, total)) > 0) {
+                total += read;
+            }
+        } finally {
+            mShare.closeFile(file);
+        }
+        return total;
+    }
+
+    @Benchmark
+    public long sequentialWrite() throws Exception {
+        SimbaDiskDriver driver = mShare.getDriver();
+        NetworkFile file = mShare.openFile(WRITE_FILE, true);
+        long total = 0;
+        try {
+            while (total < FILE_SIZE) {
+                total += driver.writeFile(mShare.getSession(), mShare.getTree(), file, mBuffer,
+                        0, (int) Math.min(requestSize, FILE_SIZE - total), total);
+            }
+        } finally {
+            mShare.closeFile(file);
+        }
+        return total;
+    }
+}
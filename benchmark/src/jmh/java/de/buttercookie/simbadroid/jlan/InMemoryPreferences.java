@@ -0,0 +1,55 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package de.buttercookie.simbadroid.jlan;
+
+import android.content.SharedPreferences;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Preferences that only live as long as the benchmark, so that every run starts out with the
+ * same tuning.
+ */
+class InMemoryPreferences implements SharedPreferences {
+    // Guarded by 'this'.
+    private final Map<String, Object> mValues = new HashMap<>();
+
+    @Override
+    public synchronized int getInt(String key, int defValue) {
+        return mValues.get(key) instanceof Integer value ? value : defValue;
+    }
+
+    @Override
+    public synchronized long getLong(String key, long defValue) {
+        return mValues.get(key) instanceof Long value ? value : defValue;
+    }
+
+    @Override
+    public Editor edit() {
+        return new Editor() {
+            private final Map<String, Object> mChanges = new HashMap<>();
+
+            @Override
+            public Editor putInt(String key, int value) {
+                mChanges.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor putLong(String key, long value) {
+                mChanges.put(key, value);
+                return this;
+            }
+
+            @Override
+            public void apply() {
+                synchronized (InMemoryPreferences.this) {
+                    mValues.putAll(mChanges);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,30 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package de.buttercookie.simbadroid.jlan;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Answers the volume queries through NIO instead of <code>StatFs</code> and <code>Os.stat</code>.
+ */
+class JvmVolumeInfo implements VolumeInfo {
+    @Override
+    public Usage getUsage(String path) throws IOException {
+        FileStore store = Files.getFileStore(Paths.get(path));
+        long blockSize = store.getBlockSize();
+        return new Usage(blockSize, store.getTotalSpace() / blockSize,
+                store.getUsableSpace() / blockSize);
+    }
+
+    @Override
+    public long getDeviceId(String path) throws IOException {
+        Path file = Paths.get(path);
+        return ((Number) Files.getAttribute(file, "unix:dev")).longValue();
+    }
+}
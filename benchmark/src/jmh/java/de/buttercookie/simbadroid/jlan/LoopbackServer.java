@@ -0,0 +1,119 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package de.buttercookie.simbadroid.jlan;
+
+import android.content.SharedPreferences;
+
+import org.filesys.server.NetworkServer;
+import org.filesys.smb.server.SMBConfigSection;
+import org.filesys.smb.server.SMBServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.List;
+
+/**
+ * A complete SMB server with the configuration of the app, serving a temporary directory on the
+ * loopback interface.
+ */
+class LoopbackServer implements Closeable {
+    static final String SHARE_NAME = "Benchmark";
+    // As configured by JLANFileServerConfiguration.
+    private static final int SMB_PORT = 4450;
+    private static final long STARTUP_TIMEOUT_MS = 10000;
+
+    private final TempShareDirectory mDir;
+    private final JLANFileServerConfiguration mCfg;
+
+    LoopbackServer() throws Exception {
+        mDir = new TempShareDirectory();
+        mCfg = new JLANFileServerConfiguration(new Platform(), "SIMBABENCH");
+        mCfg.setBindAddresses(List.of(InetAddress.getLoopbackAddress()));
+        // There's nobody to announce the server to.
+        SMBConfigSection smbConfig =
+                (SMBConfigSection) mCfg.getConfigSection(SMBConfigSection.SectionName);
+        smbConfig.setHostAnnouncer(false);
+
+        // Clients connect directly, so unlike JLANFileServer no NetBIOS name server is needed.
+        mCfg.addServer(new SMBServer(mCfg));
+        for (int i = 0; i < mCfg.numberOfServers(); i++) {
+            mCfg.getServer(i).startServer();
+        }
+        if (mCfg.getWorkerPool() != null) {
+            mCfg.getWorkerPool().start();
+        }
+        awaitListening();
+    }
+
+    TempShareDirectory getDirectory() {
+        return mDir;
+    }
+
+    /**
+     * @return The URL of the share's root directory.
+     */
+    String getShareUrl() {
+        return "smb://" + InetAddress.getLoopbackAddress().getHostAddress() + ":" + SMB_PORT +
+                "/" + SHARE_NAME + "/";
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (int i = 0; i < mCfg.numberOfServers(); i++) {
+            NetworkServer server = mCfg.getServer(i);
+            server.shutdownServer(false);
+        }
+        mCfg.removeAllServers();
+        if (mCfg.getWorkerPool() != null) {
+            mCfg.getWorkerPool().stop();
+        }
+        mCfg.getMemoryPoolTuner().save();
+        // Shuts down the share's caches and writes out any buffered data before the directory
+        // goes away.
+        mCfg.closeConfiguration();
+        mDir.close();
+    }
+
+    private void awaitListening() throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT_MS;
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), SMB_PORT));
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    private class Platform implements ServerPlatform {
+        @Override
+        public List<Share> getShares() {
+            return List.of(new Share(SHARE_NAME, mDir.getShareDir().toString(),
+                    mDir.getTrashcanDir().toString()));
+        }
+
+        @Override
+        public SharedPreferences getMemoryPoolPreferences() {
+            return new InMemoryPreferences();
+        }
+
+        @Override
+        public VolumeInfo getVolumeInfo() {
+            return new JvmVolumeInfo();
+        }
+
+        @Override
+        public boolean needsDesugaringWorkarounds() {
+            return false;
+        }
+    }
+}
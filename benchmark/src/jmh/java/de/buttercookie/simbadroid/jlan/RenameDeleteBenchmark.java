@@ -0,0 +1,66 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package de.buttercookie.simbadroid.jlan;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Renaming files and deleting them, which moves them into the trashcan.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RenameDeleteBenchmark {
+    private static final String FILE = "\\dir\\file.txt";
+    private static final String RENAMED_FILE = "\\dir\\renamed.txt";
+    private static final String DELETED_FILE = "\\dir\\deleted.txt";
+
+    @Param({"true", "false"})
+    public boolean cached;
+
+    private ShareFixture mShare;
+    private boolean mRenamed;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        mShare = new ShareFixture(cached);
+        mShare.createFile(FILE, 4096);
+        mRenamed = false;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        mShare.close();
+    }
+
+    @Benchmark
+    public void rename() throws Exception {
+        // Alternate between the two names, so that no setup is needed between invocations.
+        String from = mRenamed ? RENAMED_FILE : FILE;
+        String to = mRenamed ? FILE : RENAMED_FILE;
+        mShare.getDriver().renameFile(mShare.getSession(), mShare.getTree(), from, to, null);
+        mRenamed = !mRenamed;
+    }
+
+    /**
+     * Creating the file to delete is part of the measurement.
+     */
+    @Benchmark
+    public void createAndDelete() throws Exception {
+        mShare.closeFile(mShare.openFile(DELETED_FILE, true));
+        mShare.getDriver().deleteFile(mShare.getSession(), mShare.getTree(), DELETED_FILE);
+    }
+}
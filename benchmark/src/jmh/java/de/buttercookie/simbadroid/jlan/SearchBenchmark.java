@@ -0,0 +1,69 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package de.buttercookie.simbadroid.jlan;
+
+import org.filesys.server.filesys.FileAttribute;
+import org.filesys.server.filesys.FileInfo;
+import org.filesys.server.filesys.SearchContext;
+import org.filesys.server.filesys.SearchFlags;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Listing a whole directory, the way Explorer does when a folder is opened.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SearchBenchmark {
+    private static final String DIR = "\\dir";
+    private static final int SEARCH_ATTRIBUTES =
+            FileAttribute.Directory | FileAttribute.Hidden | FileAttribute.System;
+
+    @Param({"true", "false"})
+    public boolean cached;
+
+    @Param({"1000", "10000", "100000"})
+    public int entries;
+
+    private ShareFixture mShare;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        mShare = new ShareFixture(cached);
+        for (int i = 0; i < entries; i++) {
+            mShare.createFile(DIR + "\\file" + i + ".txt", 0);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        mShare.close();
+    }
+
+    @Benchmark
+    public int listDirectory() throws Exception {
+        SearchContext search = mShare.getDriver().startSearch(mShare.getSession(),
+                mShare.getTree(), DIR + "\\*", SEARCH_ATTRIBUTES, EnumSet.noneOf(SearchFlags.class));
+        FileInfo info = new FileInfo();
+        int count = 0;
+        while (search.nextFileInfo(info)) {
+            count++;
+        }
+        search.closeSearch();
+        return count;
+    }
+}
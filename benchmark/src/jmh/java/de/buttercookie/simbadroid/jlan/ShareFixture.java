@@ -0,0 +1,165 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package de.buttercookie.simbadroid.jlan;
+
+import org.filesys.server.SrvSession;
+import org.filesys.server.config.ServerConfiguration;
+import org.filesys.server.core.DeviceContextException;
+import org.filesys.server.filesys.AccessMode;
+import org.filesys.server.filesys.DiskSharedDevice;
+import org.filesys.server.filesys.FileAction;
+import org.filesys.server.filesys.FileAttribute;
+import org.filesys.server.filesys.FileOpenParams;
+import org.filesys.server.filesys.FileStatus;
+import org.filesys.server.filesys.NetworkFile;
+import org.filesys.server.filesys.TreeConnection;
+import org.springframework.extensions.config.element.GenericConfigElement;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+
+/**
+ * A share on a temporary directory, set up the same way as the shares of the real server.
+ */
+class ShareFixture implements Closeable {
+    static final String SHARE_NAME = "Benchmark";
+
+    // The driver configuration is pinned here instead of following the defaults of the app, so
+    // that results stay comparable across commits that change those defaults.
+    private static final int ReadAheadMaxWindow = 1024 * 1024;
+    private static final int ReadAheadWindows = 2;
+    private static final int ReadAheadMaxBuffers = 16;
+    private static final int WriteBehindChunk = 1024 * 1024;
+    private static final int WriteBehindDelay = 500;
+    private static final int DirCacheMaxDirs = 64;
+    private static final int FileInfoCacheSize = 2048;
+    private static final int FileInfoCacheTtl = 2000;
+    private static final String JunkFilePatterns =
+            "desktop.ini,Thumbs.db,.DS_Store,._*,autorun.inf,folder.jpg";
+
+    private final TempShareDirectory mDir;
+    private final SimbaDiskDriver mDriver;
+    private final SimbaDiskDeviceContext mContext;
+    private final TreeConnection mTree;
+    private final SrvSession<?> mSession;
+
+    /**
+     * @param cached Whether to enable the driver's read, write and metadata caches, otherwise
+     *               the share behaves like a plain <code>JavaNIODiskDriver</code> share.
+     */
+    ShareFixture(boolean cached) throws IOException, DeviceContextException {
+        mDir = new TempShareDirectory();
+
+        SimbaDiskDriver.setVolumeInfo(new JvmVolumeInfo());
+        mDriver = new SimbaDiskDriver();
+
+        GenericConfigElement driverConfig = new GenericConfigElement("driver");
+        addConfigValue(driverConfig, "LocalPath", mDir.getShareDir().toString());
+        addConfigValue(driverConfig, "TrashcanPath", mDir.getTrashcanDir().toString());
+        if (cached) {
+            addConfigValue(driverConfig, SimbaDiskDeviceContext.CfgReadAheadMaxWindow,
+                    ReadAheadMaxWindow);
+            addConfigValue(driverConfig, SimbaDiskDeviceContext.CfgReadAheadWindows,
+                    ReadAheadWindows);
+            addConfigValue(driverConfig, SimbaDiskDeviceContext.CfgReadAheadMaxBuffers,
+                    ReadAheadMaxBuffers);
+            driverConfig.addChild(new GenericConfigElement(SimbaDiskDeviceContext.CfgDirectRead));
+            addConfigValue(driverConfig, SimbaDiskDeviceContext.CfgWriteBehindChunk,
+                    WriteBehindChunk);
+            addConfigValue(driverConfig, SimbaDiskDeviceContext.CfgWriteBehindDelay,
+                    WriteBehindDelay);
+            addConfigValue(driverConfig, SimbaDiskDeviceContext.CfgDirCacheMaxDirs,
+                    DirCacheMaxDirs);
+            addConfigValue(driverConfig, SimbaDiskDeviceContext.CfgFileInfoCacheSize,
+                    FileInfoCacheSize);
+            addConfigValue(driverConfig, SimbaDiskDeviceContext.CfgFileInfoCacheTtl,
+                    FileInfoCacheTtl);
+            addConfigValue(driverConfig, SimbaDiskDeviceContext.CfgJunkFilePatterns,
+                    JunkFilePatterns);
+        }
+
+        mContext = (SimbaDiskDeviceContext) mDriver.createContext(SHARE_NAME, driverConfig);
+        mContext.setShareName(SHARE_NAME);
+        mContext.setConfigurationParameters(driverConfig);
+        mContext.enableChangeHandler(false);
+        DiskSharedDevice diskDev = new DiskSharedDevice(SHARE_NAME, mDriver, mContext);
+        diskDev.setConfiguration(new ServerConfiguration("benchmark"));
+        mContext.startFilesystem(diskDev);
+
+        mTree = new TreeConnection(diskDev);
+        mSession = new Session();
+    }
+
+    SimbaDiskDriver getDriver() {
+        return mDriver;
+    }
+
+    TreeConnection getTree() {
+        return mTree;
+    }
+
+    SrvSession<?> getSession() {
+        return mSession;
+    }
+
+    /**
+     * Create a file outside of the driver, so that it isn't in any of the driver's caches.
+     */
+    void createFile(String sharePath, long size) throws IOException {
+        mDir.createFile(sharePath.replace('\\', '/').substring(1), size);
+    }
+
+    NetworkFile openFile(String sharePath, boolean write) throws IOException {
+        FileOpenParams params = new FileOpenParams(sharePath,
+                write ? FileAction.CreateNotExist | FileAction.TruncateExisting
+                        : FileAction.OpenIfExists,
+                write ? AccessMode.ReadWrite : AccessMode.ReadOnly,
+                FileAttribute.Normal, 0);
+        if (write) {
+            return mDriver.fileExists(mSession, mTree, sharePath) == FileStatus.FileExists ?
+                    mDriver.openFile(mSession, mTree, params) :
+                    mDriver.createFile(mSession, mTree, params);
+        }
+        return mDriver.openFile(mSession, mTree, params);
+    }
+
+    void closeFile(NetworkFile file) throws IOException {
+        mDriver.closeFile(mSession, mTree, file);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mContext.CloseContext();
+        mDir.close();
+    }
+
+    private static void addConfigValue(GenericConfigElement parent, String name, Object value) {
+        final GenericConfigElement element = new GenericConfigElement(name);
+        element.setValue(String.valueOf(value));
+        parent.addChild(element);
+    }
+
+    /**
+     * The driver only needs the session for its ID and debug output.
+     */
+    private static class Session extends SrvSession<Session.Dbg> {
+        enum Dbg {}
+
+        Session() {
+            super(1, null, "Benchmark", "localhost", Dbg.class);
+        }
+
+        @Override
+        public InetAddress getRemoteAddress() {
+            return InetAddress.getLoopbackAddress();
+        }
+
+        @Override
+        public boolean useCaseSensitiveSearch() {
+            return false;
+        }
+    }
+}
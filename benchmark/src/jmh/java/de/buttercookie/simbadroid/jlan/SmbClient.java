@@ -0,0 +1,47 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package de.buttercookie.simbadroid.jlan;
+
+import jcifs.CIFSContext;
+import jcifs.CIFSException;
+import jcifs.config.PropertyConfiguration;
+import jcifs.context.BaseContext;
+import jcifs.smb.SmbFile;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.util.Properties;
+
+/**
+ * An SMB client with its own connection to the server.
+ */
+class SmbClient implements Closeable {
+    private final CIFSContext mContext;
+    private final String mShareUrl;
+
+    SmbClient(String shareUrl) throws CIFSException {
+        Properties props = new Properties();
+        // JFileServer only speaks SMBv1.
+        props.setProperty("jcifs.smb.client.minVersion", "SMB1");
+        props.setProperty("jcifs.smb.client.maxVersion", "SMB1");
+        props.setProperty("jcifs.smb.client.useSMB2Negotiation", "false");
+        props.setProperty("jcifs.smb.client.responseTimeout", "60000");
+        mContext = new BaseContext(new PropertyConfiguration(props)).withGuestCrendentials();
+        mShareUrl = shareUrl;
+    }
+
+    /**
+     * @param path Path relative to the share, with a trailing <code>/</code> for directories.
+     */
+    SmbFile get(String path) throws MalformedURLException {
+        return new SmbFile(mShareUrl + path, mContext);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mContext.close();
+    }
+}
@@ -0,0 +1,192 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package de.buttercookie.simbadroid.jlan;
+
+import jcifs.smb.SmbFile;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * End-to-end measurements of a complete server on the loopback interface, driven by an SMB
+ * client in the same JVM.
+ * <p>
+ * Sample time mode reports the latency percentiles of each operation, throughput mode the rate
+ * of the <code>bytes</code> counter, and the <code>gc</code> profiler configured for the module
+ * the allocation rate, which covers both the server and the client. More concurrent clients than
+ * the default can be simulated by overriding the thread count of
+ * {@link #concurrentSequentialRead}.
+ */
+@BenchmarkMode({Mode.SampleTime, Mode.Throughput})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SmbServerBenchmark {
+    private static final String LARGE_FILE = "large.bin";
+    private static final long LARGE_FILE_SIZE = 64 * 1024 * 1024;
+    private static final String SMALL_FILE_DIR = "small/";
+    private static final int SMALL_FILE_SIZE = 16 * 1024;
+    private static final int SMALL_FILES = 1000;
+    private static final String TREE_DIR = "tree/";
+    private static final int TREE_DEPTH = 4;
+    private static final int TREE_FANOUT = 4;
+    private static final int TREE_FILES_PER_DIR = 16;
+    private static final int IO_BUFFER_SIZE = 1024 * 1024;
+
+    @State(Scope.Benchmark)
+    public static class Server {
+        LoopbackServer mServer;
+        final AtomicInteger mClientIds = new AtomicInteger();
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            mServer = new LoopbackServer();
+            TempShareDirectory dir = mServer.getDirectory();
+            dir.createFile(LARGE_FILE, LARGE_FILE_SIZE);
+            for (int i = 0; i < SMALL_FILES; i++) {
+                dir.createFile(SMALL_FILE_DIR + "file" + i, SMALL_FILE_SIZE);
+            }
+            createTree(dir, TREE_DIR, TREE_DEPTH);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            mServer.close();
+        }
+
+        private static void createTree(TempShareDirectory dir, String path, int depth)
+                throws Exception {
+            for (int i = 0; i < TREE_FILES_PER_DIR; i++) {
+                dir.createFile(path + "file" + i, 0);
+            }
+            if (depth > 1) {
+                for (int i = 0; i < TREE_FANOUT; i++) {
+                    createTree(dir, path + "dir" + i + "/", depth - 1);
+                }
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        SmbClient mClient;
+        int mId;
+        int mNextFile;
+        final byte[] mBuffer = new byte[IO_BUFFER_SIZE];
+
+        @Setup(Level.Trial)
+        public void setUp(Server server) throws Exception {
+            mClient = new SmbClient(server.mServer.getShareUrl());
+            mId = server.mClientIds.getAndIncrement();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            mClient.close();
+        }
+
+        String nextSmallFile() {
+            String name = SMALL_FILE_DIR + "file" + mNextFile;
+            mNextFile = (mNextFile + 1) % SMALL_FILES;
+            return name;
+        }
+    }
+
+    /**
+     * Bytes transferred, which JMH reports as a rate in throughput mode.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Transfer {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    @Benchmark
+    public void sequentialRead(Client client, Transfer transfer) throws Exception {
+        transfer.bytes += read(client, client.mClient.get(LARGE_FILE));
+    }
+
+    @Benchmark
+    public void sequentialWrite(Client client, Transfer transfer) throws Exception {
+        transfer.bytes += write(client, client.mClient.get("written" + client.mId + ".bin"),
+                LARGE_FILE_SIZE);
+    }
+
+    @Benchmark
+    public void smallFileRead(Client client, Transfer transfer) throws Exception {
+        transfer.bytes += read(client, client.mClient.get(client.nextSmallFile()));
+    }
+
+    @Benchmark
+    public void smallFileWrite(Client client, Transfer transfer) throws Exception {
+        transfer.bytes += write(client,
+                client.mClient.get(client.nextSmallFile() + "-" + client.mId), SMALL_FILE_SIZE);
+    }
+
+    /**
+     * @return The number of entries in the whole directory tree.
+     */
+    @Benchmark
+    public int deepEnumeration(Client client) throws Exception {
+        return enumerate(client.mClient.get(TREE_DIR));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void concurrentSequentialRead(Client client, Transfer transfer) throws Exception {
+        transfer.bytes += read(client, client.mClient.get(LARGE_FILE));
+    }
+
+    private static long read(Client client, SmbFile file) throws Exception {
+        long total = 0;
+        try (InputStream in = file.getInputStream()) {
+            int read;
+            while ((read = in.read(client.mBuffer)) > 0) {
+                total += read;
+            }
+        }
+        return total;
+    }
+
+    private static long write(Client client, SmbFile file, long size) throws Exception {
+        long total = 0;
+        try (OutputStream out = file.getOutputStream()) {
+            while (total < size) {
+                int count = (int) Math.min(client.mBuffer.length, size - total);
+                out.write(client.mBuffer, 0, count);
+                total += count;
+            }
+        }
+        return total;
+    }
+
+    private static int enumerate(SmbFile dir) throws Exception {
+        int count = 0;
+        for (SmbFile file : dir.listFiles()) {
+            count++;
+            if (file.isDirectory()) {
+                count += enumerate(file);
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,75 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package de.buttercookie.simbadroid.jlan;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * A temporary directory for a share and its trashcan, which is removed again when closed.
+ */
+class TempShareDirectory implements Closeable {
+    private final Path mBaseDir;
+    private final Path mShareDir;
+    private final Path mTrashcanDir;
+
+    TempShareDirectory() throws IOException {
+        mBaseDir = Files.createTempDirectory("simbadroid-bench");
+        mShareDir = Files.createDirectory(mBaseDir.resolve("share"));
+        mTrashcanDir = Files.createDirectory(mBaseDir.resolve("trash"));
+    }
+
+    Path getShareDir() {
+        return mShareDir;
+    }
+
+    Path getTrashcanDir() {
+        return mTrashcanDir;
+    }
+
+    /**
+     * Create a file in the share, bypassing the server.
+     *
+     * @param path Path of the file relative to the share, using <code>/</code> as separator.
+     */
+    void createFile(String path, long size) throws IOException {
+        Path file = mShareDir.resolve(path);
+        Files.createDirectories(file.getParent());
+        byte[] chunk = new byte[64 * 1024];
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (long written = 0; written < size; written += chunk.length) {
+                out.write(chunk, 0, (int) Math.min(chunk.length, size - written));
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        Files.walkFileTree(mBaseDir, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+                    throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e)
+                    throws IOException {
+                if (e != null) {
+                    throw e;
+                }
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,25 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package android.content;
+
+/**
+ * Stand-in for the parts of the Android interface used by the disk driver, so that it compiles
+ * on a plain JVM.
+ */
+public interface SharedPreferences {
+    int getInt(String key, int defValue);
+
+    long getLong(String key, long defValue);
+
+    Editor edit();
+
+    interface Editor {
+        Editor putInt(String key, int value);
+
+        Editor putLong(String key, long value);
+
+        void apply();
+    }
+}
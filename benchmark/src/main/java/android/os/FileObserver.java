@@ -0,0 +1,32 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package android.os;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Stand-in for the Android class when running the disk driver on a plain JVM. No events are ever
+ * delivered, which is fine as long as all changes go through the driver.
+ */
+public abstract class FileObserver {
+    public static final int MODIFY = 0x00000002;
+    public static final int ATTRIB = 0x00000004;
+    public static final int CLOSE_WRITE = 0x00000008;
+    public static final int MOVED_FROM = 0x00000040;
+    public static final int MOVED_TO = 0x00000080;
+    public static final int CREATE = 0x00000100;
+    public static final int DELETE = 0x00000200;
+    public static final int DELETE_SELF = 0x00000400;
+    public static final int MOVE_SELF = 0x00000800;
+
+    @Deprecated
+    public FileObserver(String path, int mask) {}
+
+    public void startWatching() {}
+
+    public void stopWatching() {}
+
+    public abstract void onEvent(int event, @Nullable String path);
+}
@@ -0,0 +1,24 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package android.os;
+
+import com.sun.management.OperatingSystemMXBean;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Stand-in for the Android class when running the server on a plain JVM.
+ */
+public final class Process {
+    private Process() {}
+
+    /**
+     * @return The CPU time used by the process in milliseconds.
+     */
+    public static long getElapsedCpuTime() {
+        return ((OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean())
+                .getProcessCpuTime() / 1000000;
+    }
+}
@@ -0,0 +1,31 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at https://mozilla.org/MPL/2.0/. */
+
+package android.util;
+
+/**
+ * Stand-in for the Android class when running the disk driver on a plain JVM. Debug messages
+ * are dropped, so that logging doesn't distort the measurements.
+ */
+public final class Log {
+    private Log() {}
+
+    public static int d(String tag, String msg) {
+        return 0;
+    }
+
+    public static int d(String tag, String msg, Throwable tr) {
+        return 0;
+    }
+
+    public static int w(String tag, String msg) {
+        System.err.println(tag + ": " + msg);
+        return 0;
+    }
+
+    public static int w(String tag, String msg, Throwable tr) {
+        System.err.println(tag + ": " + msg + ": " + tr);
+        return 0;
+    }
+}
@@ -2,6 +2,7 @@
 plugins {
     alias(libs.plugins.android.application) apply false
     alias(libs.plugins.externalproperties) apply false
+    alias(libs.plugins.jmh) apply false
 }
 
 allprojects {
@@ -32,3 +32,4 @@ dependencyResolutionManagement {
 
 rootProject.name = "SimbaDroid"
 include(":app")
+include(":benchmark")